@@ -1,6 +1,5 @@
 package com.simedge.api;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -8,14 +7,16 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPSClient;
 import com.simedge.logger.Logger;
 import com.simedge.peer.ConnectionPool;
 import com.simedge.protocols.PeerMessage;
 import com.simedge.protocols.PeerMessage.DataType;
+import com.simedge.scheduling.LocalScheduler;
 
 /**
  * SimEdge API class
@@ -80,6 +81,279 @@ public class SimEdgeAPI {
 
     }
 
+    /**
+     * Execute ONNX model on edge computing system and receive the result
+     * asynchronously. Uses the scheduler timeout.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputData     input data to run the model on
+     * @param dType         data type of the result
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @return future completed with the reduced output of the model
+     */
+    public CompletableFuture<ByteBuffer> executeONNXAsync(byte[] modelHash, String dataInputName, byte[] inputData,
+            PeerMessage.DataType dType, int[] indicies) {
+        return executeONNXAsync(modelHash, dataInputName, inputData, dType, indicies, LocalScheduler.TIMEOUT);
+    }
+
+    /**
+     * Execute ONNX model on edge computing system and receive the result
+     * asynchronously.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputData     input data to run the model on
+     * @param dType         data type of the result
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param timeout       time in milliseconds after which the future fails with
+     *                      a TimeoutException
+     * @return future completed with the reduced output of the model. Fails with a
+     *         RejectedExecutionException if no resource is availible.
+     */
+    public CompletableFuture<ByteBuffer> executeONNXAsync(byte[] modelHash, String dataInputName, byte[] inputData,
+            PeerMessage.DataType dType, int[] indicies, long timeout) {
+        PeerMessage message = new PeerMessage(PeerMessage.MessageType.EXECUTE, dType, inputData, modelHash,
+                dataInputName, indicies);
+        return send(message, timeout).thenApply(PeerMessage::getData);
+    }
+
+    /**
+     * Execute ONNX model with an input tensor of any shape, e.g. an image of
+     * [1][3][224][224], and receive the result asynchronously. The provider builds
+     * the tensor with this shape directly.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputData     input data in big endian byte order
+     * @param shape         shape of the input tensor
+     * @param dType         data type of the input
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param encoding      encoding of the result on the network
+     * @param timeout       time in milliseconds after which the future fails with
+     *                      a TimeoutException
+     * @return future completed with the result message. Its getData returns the
+     *         reduced output and getFloats the decoded float output. Fails with a
+     *         RejectedExecutionException if no resource is availible.
+     */
+    public CompletableFuture<PeerMessage> executeONNXShaped(byte[] modelHash, String dataInputName,
+            byte[] inputData, long[] shape, PeerMessage.DataType dType, int[] indicies,
+            PeerMessage.ResultEncoding encoding, long timeout) {
+        return send(new PeerMessage(dType, inputData, shape, modelHash, dataInputName, indicies, encoding),
+                timeout);
+    }
+
+    /**
+     * Execute ONNX model with several named inputs, e.g. state and observation,
+     * in a single round trip.
+     *
+     * @param modelHash sha1 hash of the onnx model file using md.digest
+     * @param inputs    named inputs of the model
+     * @param indicies  array of indicies that should be returned. Using this
+     *                  returns only a part of the results.
+     * @param encoding  encoding of the result on the network
+     * @param timeout   time in milliseconds after which the future fails with a
+     *                  TimeoutException
+     * @return future completed with the result message. Its getData returns the
+     *         reduced output and getFloats the decoded float output. Fails with a
+     *         RejectedExecutionException if no resource is availible.
+     */
+    public CompletableFuture<PeerMessage> executeONNXInputs(byte[] modelHash, List<PeerMessage.Input> inputs,
+            int[] indicies, PeerMessage.ResultEncoding encoding, long timeout) {
+        return executeONNXInputs(modelHash, inputs, List.of(), indicies, encoding, timeout);
+    }
+
+    /**
+     * Execute ONNX model with several named inputs and return only the requested
+     * outputs. The provider skips the parts of the model that no requested output
+     * depends on.
+     *
+     * @param modelHash   sha1 hash of the onnx model file using md.digest
+     * @param inputs      named inputs of the model
+     * @param outputNames output names of the model in the order they are returned.
+     *                    Empty = all outputs in model order
+     * @param indicies    array of indicies that should be returned of each
+     *                    output. Using this returns only a part of the results.
+     * @param encoding    encoding of the result on the network
+     * @param timeout     time in milliseconds after which the future fails with a
+     *                    TimeoutException
+     * @return future completed with the result message. Its getData returns the
+     *         reduced outputs concatenated in the requested order. Fails with a
+     *         RejectedExecutionException if no resource is availible.
+     */
+    public CompletableFuture<PeerMessage> executeONNXInputs(byte[] modelHash, List<PeerMessage.Input> inputs,
+            List<String> outputNames, int[] indicies, PeerMessage.ResultEncoding encoding, long timeout) {
+        PeerMessage message = new PeerMessage(inputs, modelHash, indicies, encoding);
+        message.setOutputNames(outputNames);
+        return send(message, timeout);
+    }
+
+    /**
+     * Execute ONNX model on edge computing system and receive the float result
+     * decoded. The provider encodes the result as requested, e.g. as half
+     * precision floats to halve the result size. Uses the scheduler timeout.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputData     input data to run the model on
+     * @param dType         data type of the input
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param encoding      encoding of the result on the network
+     * @return future completed with the reduced output of the model as floats.
+     *         Fails with an IndexOutOfBoundsException if the indicies are outside
+     *         of the result.
+     */
+    public CompletableFuture<float[]> executeONNXDecoded(byte[] modelHash, String dataInputName, byte[] inputData,
+            PeerMessage.DataType dType, int[] indicies, PeerMessage.ResultEncoding encoding) {
+        return executeONNXDecoded(modelHash, dataInputName, inputData, dType, indicies, encoding,
+                LocalScheduler.TIMEOUT);
+    }
+
+    /**
+     * Execute ONNX model on edge computing system and receive the float result
+     * decoded. The provider encodes the result as requested, e.g. as half
+     * precision floats to halve the result size.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputData     input data to run the model on
+     * @param dType         data type of the input
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param encoding      encoding of the result on the network
+     * @param timeout       time in milliseconds after which the future fails with
+     *                      a TimeoutException
+     * @return future completed with the reduced output of the model as floats.
+     *         Fails with a RejectedExecutionException if no resource is
+     *         availible.
+     */
+    public CompletableFuture<float[]> executeONNXDecoded(byte[] modelHash, String dataInputName, byte[] inputData,
+            PeerMessage.DataType dType, int[] indicies, PeerMessage.ResultEncoding encoding, long timeout) {
+        PeerMessage message = new PeerMessage(PeerMessage.MessageType.EXECUTE, dType, inputData, modelHash,
+                dataInputName, indicies, encoding);
+        return send(message, timeout).thenApply(PeerMessage::getFloats);
+    }
+
+    /**
+     * Execute ONNX model on many inputs with a single message and receive the
+     * float results decoded. Uses the scheduler timeout.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputs        input data of each inference. All inputs need to have
+     *                      the same length.
+     * @param dType         data type of the input
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param encoding      encoding of the results on the network
+     * @return future completed with the reduced output of each input as floats
+     *         in order of the inputs. Null for inputs the provider sent an error
+     *         for.
+     */
+    public CompletableFuture<List<float[]>> executeONNXBatchDecoded(byte[] modelHash, String dataInputName,
+            List<byte[]> inputs, PeerMessage.DataType dType, int[] indicies, PeerMessage.ResultEncoding encoding) {
+        return executeONNXBatchDecoded(modelHash, dataInputName, inputs, dType, indicies, encoding,
+                LocalScheduler.TIMEOUT);
+    }
+
+    /**
+     * Execute ONNX model on many inputs with a single message and receive the
+     * float results decoded.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputs        input data of each inference. All inputs need to have
+     *                      the same length.
+     * @param dType         data type of the input
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param encoding      encoding of the results on the network
+     * @param timeout       time in milliseconds after which the future fails with
+     *                      a TimeoutException
+     * @return future completed with the reduced output of each input as floats
+     *         in order of the inputs. Null for inputs the provider sent an error
+     *         for. Fails with a RejectedExecutionException if no resource is
+     *         availible.
+     */
+    public CompletableFuture<List<float[]>> executeONNXBatchDecoded(byte[] modelHash, String dataInputName,
+            List<byte[]> inputs, PeerMessage.DataType dType, int[] indicies, PeerMessage.ResultEncoding encoding,
+            long timeout) {
+        PeerMessage message = new PeerMessage(dType, inputs, modelHash, dataInputName, indicies, encoding);
+        return send(message, timeout).thenApply(PeerMessage::getFloatResults);
+    }
+
+    /**
+     * Execute ONNX model on many inputs with a single message. The provider runs
+     * all inputs as one batch and returns all outputs in one reply. Uses the
+     * scheduler timeout.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputs        input data of each inference. All inputs need to have
+     *                      the same length.
+     * @param dType         data type of the result
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @return future completed with the reduced output of each input in order of
+     *         the inputs
+     */
+    public CompletableFuture<List<ByteBuffer>> executeONNXBatch(byte[] modelHash, String dataInputName,
+            List<byte[]> inputs, PeerMessage.DataType dType, int[] indicies) {
+        return executeONNXBatch(modelHash, dataInputName, inputs, dType, indicies, LocalScheduler.TIMEOUT);
+    }
+
+    /**
+     * Execute ONNX model on many inputs with a single message. The provider runs
+     * all inputs as one batch and returns all outputs in one reply.
+     *
+     * @param modelHash     sha1 hash of the onnx model file using md.digest
+     * @param dataInputName input name of input tensor
+     * @param inputs        input data of each inference. All inputs need to have
+     *                      the same length.
+     * @param dType         data type of the result
+     * @param indicies      array of indicies that should be returned. Using this
+     *                      returns only a part of the results.
+     * @param timeout       time in milliseconds after which the future fails with
+     *                      a TimeoutException
+     * @return future completed with the reduced output of each input in order of
+     *         the inputs. Fails with a RejectedExecutionException if no resource
+     *         is availible.
+     */
+    public CompletableFuture<List<ByteBuffer>> executeONNXBatch(byte[] modelHash, String dataInputName,
+            List<byte[]> inputs, PeerMessage.DataType dType, int[] indicies, long timeout) {
+        PeerMessage message = new PeerMessage(dType, inputs, modelHash, dataInputName, indicies);
+        return send(message, timeout).thenApply(PeerMessage::getResults);
+    }
+
+    /**
+     * Sends an execute message to a scheduled resource and registers it as
+     * pending request
+     *
+     * @param message execute or execute batch message
+     * @param timeout time in milliseconds after which the future fails with a
+     *                TimeoutException
+     * @return future completed with the result message. Fails with a
+     *         RejectedExecutionException if no resource is availible or the
+     *         resource rejected the message.
+     */
+    private static CompletableFuture<PeerMessage> send(PeerMessage message, long timeout) {
+        String scheduledResource = ConnectionPool.scheduler.scheduleResource(message.getModelHashBytes());
+        if (scheduledResource == null) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("No resource availible"));
+        }
+
+        // the provider rejects the message once the client stopped waiting for it
+        message.setTimeout(timeout);
+        // register before sending so a fast result can not overtake the registration
+        var result = ConnectionPool.pendingRequests.register(message.messageNumber, timeout);
+        ConnectionPool.node.sendMessage(scheduledResource, message);
+        return result;
+    }
+
     /**
      * Commits a onnx model to the system. If the model has not been commited to the
      * broker yet it will be uploaded to the repository. Otherwise it will be
@@ -133,30 +407,10 @@ public class SimEdgeAPI {
 
         System.out.println("UPLOADING HASH: " + ConnectionPool.bytesToHex(SimEdgeAPI.md.digest(file)));
         try {
-            FTPSClient ftpClient = new FTPSClient();
-            ftpClient.connect("134.155.108.108", 2021);
-            System.out.print(ftpClient.getReplyString());
-            ftpClient.enterLocalPassiveMode();
-
-            ftpClient.login("simedge", "hte^W9k$DaZ@ep^q3%b1^A9h6g");
-            System.out.print(ftpClient.getReplyString());
-
-            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-            System.out.print(ftpClient.getReplyString());
-
-            ftpClient.changeWorkingDirectory("modelCache");
-            System.out.print(ftpClient.getReplyString());
-
             long start = System.currentTimeMillis();
-            var stream = new ByteArrayInputStream(file);
-
-            finished = ftpClient.storeFile(hash,
-                    stream);
-            stream.close();
-            System.out.println(ftpClient.getReplyString());
+            finished = ConnectionPool.modelRepository.upload(hash, file);
             System.out
                     .println("Upload " + finished + ": " + ((System.currentTimeMillis() - start) / 1000) + " seconds");
-            ftpClient.disconnect();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,18 +1,16 @@
 package com.simedge.peer;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
-import org.apache.commons.io.FileUtils;
 import org.drasyl.node.DrasylException;
 
 import com.simedge.broker.client.BrokerThread;
+import com.simedge.repository.ModelRepository;
+import com.simedge.runtime.ExecutionEngine;
 import com.simedge.scheduling.LocalScheduler;
+import com.simedge.scheduling.PendingRequests;
 import com.simedge.utils.LRUCache;
 
 public class ConnectionPool {
@@ -20,6 +18,11 @@ public class ConnectionPool {
     public static LRUCache modelCache;
     public static PeerConnection node;
     public static BrokerThread brokerConnection;
+    public static PendingRequests pendingRequests;
+    public static ExecutionEngine executionEngine;
+    // models are uploaded to and downloaded from here
+    public static ModelRepository modelRepository = ModelRepository
+            .create(System.getProperty("simedge.repository", ModelRepository.DEFAULT));
 
     /**
      * Initializes Broker connection, drasyl peer and model cache
@@ -32,15 +35,8 @@ public class ConnectionPool {
     public static void initPeer(int numberOfResources, long MAX_MEMORY,
             ConcurrentHashMap<ByteBuffer, Boolean[]> commitedModels) {
         modelCache = new LRUCache(MAX_MEMORY);
-        try {
-            System.out.println("Writing cache files to memory");
-            fillModelCache();
-        } catch (IOException e) {
-            System.err.println("File problems during loading files from disk into cache");
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("No Such hashing alogrithm");
-        }
-
+        pendingRequests = new PendingRequests();
+        executionEngine = new ExecutionEngine(numberOfResources);
         try {
             node = new PeerConnection();
         } catch (DrasylException e) {
@@ -58,8 +54,10 @@ public class ConnectionPool {
                 Thread.sleep(100);
                 System.out.println("Scheduler: Schutting down - Returning resources");
                 scheduler.returnAllResources();
+                executionEngine.shutdown();
                 System.out.println("Model Cache: Saving cache to disk");
                 modelCache.saveModelChacheToDisk();
+                modelRepository.close();
 
             } catch (IOException e) {
                 System.err.println("File problems during cache save to disk");
@@ -73,24 +71,6 @@ public class ConnectionPool {
 
     }
 
-    /**
-     * Fills the model Cache with locally saved models
-     * 
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
-     */
-    private static void fillModelCache() throws IOException, NoSuchAlgorithmException {
-        // if folder missing make folder
-        File[] models = new File("modelCache/").listFiles();
-        System.out.println(Arrays.toString(models));
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
-        for (File file : models) {
-            byte[] fileBytes = FileUtils.readFileToByteArray(file);
-            System.out.println(bytesToHex(md.digest(fileBytes)));
-            modelCache.put(ByteBuffer.wrap(md.digest(fileBytes)), fileBytes);
-        }
-    }
-
     /**
      * Utility function to convert a byte representation of a hash to a hex string
      * 
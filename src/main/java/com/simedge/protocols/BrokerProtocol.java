@@ -1,20 +1,11 @@
 package com.simedge.protocols;
 
-import java.io.File;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentHashMap.KeySetView;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPSClient;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
-import com.simedge.api.SimEdgeAPI;
 import com.simedge.broker.client.BrokerThread;
 import com.simedge.peer.ConnectionPool;
 import com.simedge.utils.NetworkUtils;
@@ -210,77 +201,45 @@ public class BrokerProtocol {
     }
 
     /**
-     * Load model from broker or drive if requested by broker.
+     * Load model from broker or drive if requested by broker. Once the model is
+     * cached its runtime is created and warmed up in the background.
      * 
      * @param content
      */
     public void process_LOAD_MODEL(String content) {
         String hash = content.split(";")[0];
-        boolean finished = downloadModel(hash);
-
-        if (finished) {
-            MODEL_CACHED(ConnectionPool.hexToBytes(hash));
-        }
+        ByteBuffer modelHash = ByteBuffer.wrap(ConnectionPool.hexToBytes(hash));
+        // shares the download with execute messages that need the model
+        ConnectionPool.modelCache.loadAsync(modelHash).thenAccept(model -> {
+            if (model != null) {
+                MODEL_CACHED(ConnectionPool.hexToBytes(hash));
+                PeerProtocol.prepareRuntime(modelHash);
+            }
+        });
 
     }
 
     /**
-     * Download model from broker
+     * Download model from the model repository into the model cache folder. An
+     * interrupted download is resumed by the next call.
      * 
      * @param hash model hash of model to download
-     * @return
+     * @return true if the model was downloaded and matches its hash
      */
     public static boolean downloadModel(String hash) {
         System.out.println("Downloading Model: " + hash);
-        boolean finished = false;
+        long start = System.currentTimeMillis();
         try {
-            FTPSClient ftpClient = new FTPSClient();
-            ftpClient.connect("134.155.108.108", 2021);
-            ftpClient.enterLocalPassiveMode();
-
-            ftpClient.login("simedge", "hte^W9k$DaZ@ep^q3%b1^A9h6g");
-            System.out.print(ftpClient.getReplyString());
-
-            ftpClient.changeWorkingDirectory("modelCache");
-            System.out.print(ftpClient.getReplyString());
-            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-
-            System.out.println(Arrays.toString(ftpClient.listFiles()));
-
-            System.out.print(ftpClient.getReplyString());
-
-            long start = System.currentTimeMillis();
-
-            OutputStream outputStream = new BufferedOutputStream(
-                    new FileOutputStream(new File("modelCache/" + hash)));
-            finished = ftpClient.retrieveFile(hash, outputStream);
-            outputStream.close();
-            System.out.print(ftpClient.getReplyString());
-            byte[] fileArray = FileUtils.readFileToByteArray(new File("modelCache/" + hash));
-            System.out.println(fileArray.length);
-            System.out.println(ConnectionPool.bytesToHex(SimEdgeAPI.md.digest(fileArray)));
-
-            if (finished && ConnectionPool.bytesToHex(SimEdgeAPI.md.digest(fileArray)).equalsIgnoreCase(hash)) {
-                ConnectionPool.modelCache.put(ByteBuffer.wrap(ConnectionPool.hexToBytes(hash)), fileArray);
-                System.out.println(ftpClient.getReplyString());
-                System.out.println("Download Took: " + ((System.currentTimeMillis() - start) / 1000) + " seconds");
-                ftpClient.disconnect();
-            } else {
-                System.out.println("Download failed!!! Hash: " + hash + " != "
-                        + ConnectionPool.bytesToHex(SimEdgeAPI.md.digest(fileArray)));
-                ftpClient.disconnect();
-                new File("modelCache/" + hash).delete();
+            if (!ConnectionPool.modelCache.download(ByteBuffer.wrap(ConnectionPool.hexToBytes(hash)))) {
+                System.out.println("Download failed!!! Model " + hash + " is not in the repository");
+                return false;
             }
-
-            // TODO add logic that throws out cached model if not enough memory
-
-        } catch (
-
-        IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            System.out.println("Download Took: " + ((System.currentTimeMillis() - start) / 1000) + " seconds");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Download failed!!! " + e.getMessage());
+            return false;
         }
-        return finished;
     }
 
     /**
@@ -1,7 +1,15 @@
 package com.simedge.protocols;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.simedge.runtime.ONNX.ONNXRuntime;
+import com.simedge.scheduling.LocalScheduler;
 
 public class PeerMessage {
 
@@ -11,6 +19,9 @@ public class PeerMessage {
     public enum MessageType {
         EXECUTE((byte) 1),
         RESULT((byte) 2),
+        REJECTED((byte) 3),
+        EXECUTE_BATCH((byte) 4),
+        RESULT_BATCH((byte) 5),
         PING((byte) 0);
 
         private final byte id;
@@ -27,6 +38,12 @@ public class PeerMessage {
                     return MessageType.EXECUTE;
                 case (byte) 2:
                     return MessageType.RESULT;
+                case (byte) 3:
+                    return MessageType.REJECTED;
+                case (byte) 4:
+                    return MessageType.EXECUTE_BATCH;
+                case (byte) 5:
+                    return MessageType.RESULT_BATCH;
                 default:
                     return MessageType.PING;
             }
@@ -43,6 +60,10 @@ public class PeerMessage {
         FLOAT((byte) 4),
         DOUBLE((byte) 5),
         CHAR((byte) 6),
+        // half precision float, widened to float for the model
+        FLOAT16((byte) 7),
+        UINT8((byte) 8),
+        BOOL((byte) 9),
         UNKNOWN((byte) 0);
 
         private final byte id;
@@ -65,6 +86,12 @@ public class PeerMessage {
                     return DataType.DOUBLE;
                 case (byte) 6:
                     return DataType.CHAR;
+                case (byte) 7:
+                    return DataType.FLOAT16;
+                case (byte) 8:
+                    return DataType.UINT8;
+                case (byte) 9:
+                    return DataType.BOOL;
                 default:
                     return DataType.UNKNOWN;
             }
@@ -83,6 +110,7 @@ public class PeerMessage {
                 case DOUBLE:
                     return 8;
                 case CHAR:
+                case FLOAT16:
                     return 2;
                 default:
                     return 1;
@@ -90,76 +118,220 @@ public class PeerMessage {
         }
     }
 
+    /**
+     * Encoding of float results. Compact encodings trade precision for smaller
+     * result messages.
+     */
+    public enum ResultEncoding {
+        // bytes of the outputs as they are
+        RAW((byte) 0),
+        // half precision floats, half the size of floats
+        FP16((byte) 1),
+        // 8 bit values with offset and scale per result, a quarter of the size
+        INT8((byte) 2);
+
+        private final byte id;
+
+        private ResultEncoding(byte id) {
+            this.id = id;
+        }
+
+        private static ResultEncoding processByte(byte b) {
+            switch (b) {
+                case (byte) 1:
+                    return ResultEncoding.FP16;
+                case (byte) 2:
+                    return ResultEncoding.INT8;
+                default:
+                    return ResultEncoding.RAW;
+            }
+        }
+    }
+
+    /**
+     * Named input tensor of an execute message. Received inputs are views into
+     * the packet.
+     */
+    public static class Input {
+        private ByteBuffer nameBytes;
+        private String name;
+        private DataType dataType;
+        private long[] shape;
+        private ByteBuffer data;
+
+        /**
+         * Creates an input to send
+         * 
+         * @param name     input name of the model
+         * @param dataType data type of the input
+         * @param data     input data in big endian byte order. Not copied.
+         * @param shape    shape of the input tensor of one inference. Null =
+         *                 [1][n]
+         */
+        public Input(String name, DataType dataType, byte[] data, long[] shape) {
+            this.name = name;
+            this.nameBytes = ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8));
+            this.dataType = dataType;
+            this.data = ByteBuffer.wrap(data);
+            this.shape = shape;
+        }
+
+        private Input(ByteBuffer nameBytes, DataType dataType, long[] shape, ByteBuffer data) {
+            this.nameBytes = nameBytes;
+            this.dataType = dataType;
+            this.shape = shape;
+            this.data = data;
+        }
+
+        /**
+         * Returns the input name of the model
+         * 
+         * @return input name
+         */
+        public String getName() {
+            if (name == null) {
+                name = decodeName(nameBytes);
+            }
+            return name;
+        }
+
+        /**
+         * Returns the data type of the input
+         * 
+         * @return data type
+         */
+        public DataType getDataType() {
+            return dataType;
+        }
+
+        /**
+         * Returns the shape of the input tensor of one inference
+         * 
+         * @return shape. Null if the input is a [1][n] tensor.
+         */
+        public long[] getShape() {
+            return shape;
+        }
+
+        /**
+         * Returns the rows of the input, one per inference of the message
+         * 
+         * @param batchSize number of inferences
+         * @return byte buffer view of each row
+         */
+        public ByteBuffer[] getRows(int batchSize) {
+            return split(data, batchSize);
+        }
+
+        /**
+         * Number of bytes of the serialized input
+         * 
+         * @return length of the input
+         */
+        private int length() {
+            return intLength + nameBytes.remaining() + dataTypeLength + intLength
+                    + (shape == null ? 0 : shape.length * longLength) + intLength + data.remaining();
+        }
+    }
+
     static final int hashlength = 20;
     static final int longLength = 8;
+    static final int intLength = 4;
     static final int messageTypeLength = 1;
     static final int dataTypeLength = 1;
-    static int messageCounter = 0;
+    static final int encodingLength = 1;
+    static AtomicLong messageCounter = new AtomicLong();
+    // decoded input and output names by their encoded bytes. Models only have a
+    // few of them.
+    private static final int MAX_NAMES = 1024;
+    private static ConcurrentHashMap<ByteBuffer, String> names = new ConcurrentHashMap<ByteBuffer, String>();
 
-    public long messageNumber = messageCounter + 1;
+    public long messageNumber;
     public MessageType messageType;
     DataType dataTye;
+    // requested encoding of an execute message, encoding of a result message
+    ResultEncoding encoding = ResultEncoding.RAW;
+    // time in milliseconds the client waits for the result of an execute message
+    long timeout = LocalScheduler.TIMEOUT;
+    // payload of the message. For received messages a view into the packet.
     ByteBuffer data;
-    byte[] modelHash;
-    int inputNameLength;
+    // header fields. For received messages these are views into the packet and
+    // are only decoded when requested.
+    ByteBuffer modelHash;
+    ByteBuffer inputNameBytes;
     String inputName;
-    int indicesLength;
-    int[] indices;
+    IntBuffer indices;
+    int[] indicesArray;
+    // shape of the input tensor of one inference. Null = [1][n]
+    long[] shape;
+    // inputs besides the first one of models with several inputs
+    List<Input> extraInputs = new ArrayList<Input>();
+    // requested outputs of an execute message in the order of the result. Empty =
+    // all outputs of the model.
+    List<ByteBuffer> outputNameBytes = new ArrayList<ByteBuffer>();
+    List<String> outputNames;
+    int batchSize = 1;
     public long onnxTime;
 
     /**
      * Constructor for creating a PeerMessage instance from byte package that is
-     * received
+     * received. The packet is not copied, all fields are views into the packet.
      * 
      * @param packet Byte package received
      */
     public PeerMessage(byte[] packet) {
-        data = ByteBuffer.allocate(packet.length);
-        // data = ByteBuffer.allocateDirect(packet.length);
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+
+        this.messageNumber = buffer.getLong();
 
-        data.put(packet);
+        this.messageType = MessageType.processByte(buffer.get());
 
-        data.position(0);
+        if (messageType == MessageType.EXECUTE || messageType == MessageType.EXECUTE_BATCH) {
+            this.dataTye = DataType.processByte(buffer.get());
+            this.encoding = ResultEncoding.processByte(buffer.get());
+            this.timeout = buffer.getLong();
+            modelHash = view(buffer, hashlength);
 
-        this.messageNumber = data.getLong();
+            int inputNameLength = buffer.getInt();
+            inputNameBytes = view(buffer, inputNameLength);
 
-        this.messageType = MessageType.processByte(data.get());
+            int indicesLength = buffer.getInt();
+            indices = view(buffer, indicesLength).asIntBuffer();
 
-        if (messageType == MessageType.EXECUTE) {
-            this.dataTye = DataType.processByte(data.get());
-            modelHash = new byte[hashlength];
-            for (int i = 0; i < modelHash.length; i++) {
-                modelHash[i] = data.get();
+            shape = readShape(buffer);
+
+            int extraInputCount = buffer.getInt();
+            for (int i = 0; i < extraInputCount; i++) {
+                ByteBuffer nameBytes = view(buffer, buffer.getInt());
+                DataType inputType = DataType.processByte(buffer.get());
+                long[] inputShape = readShape(buffer);
+                extraInputs.add(new Input(nameBytes, inputType, inputShape, view(buffer, buffer.getInt())));
             }
 
-            inputNameLength = data.getInt();
-            byte[] inputNameBytes = new byte[inputNameLength];
-            for (int i = 0; i < inputNameBytes.length; i++) {
-                inputNameBytes[i] = data.get();
+            int outputCount = buffer.getInt();
+            for (int i = 0; i < outputCount; i++) {
+                outputNameBytes.add(view(buffer, buffer.getInt()));
             }
-            inputName = new String(inputNameBytes, StandardCharsets.UTF_8);
 
-            indicesLength = data.getInt();
-            indices = new int[indicesLength / DataType.INT.getDataTypeSize()];
-            for (int i = 0; i < indices.length; i++) {
-                indices[i] = data.getInt();
+            if (messageType == MessageType.EXECUTE_BATCH) {
+                batchSize = buffer.getInt();
             }
 
-        } else if (messageType == MessageType.RESULT) {
-            this.onnxTime = data.getLong();
-            System.out.println("Result with " + data.remaining() + " bytes received");
+        } else if (messageType == MessageType.RESULT || messageType == MessageType.RESULT_BATCH) {
+            this.onnxTime = buffer.getLong();
+            this.encoding = ResultEncoding.processByte(buffer.get());
+            System.out.println("Result with " + buffer.remaining() + " bytes received");
         } else if (messageType == MessageType.PING) {
             System.out.println("Ping Received");
-            modelHash = new byte[hashlength];
-            for (int i = 0; i < modelHash.length; i++) {
-                modelHash[i] = data.get();
-            }
+            modelHash = view(buffer, hashlength);
         }
 
+        data = buffer.slice();
     }
 
     /**
-     * Construct for execute message
+     * Construct for execute message. The input data is not copied and must not be
+     * changed until the message is sent.
      * 
      * @param messageType Message type
      * @param dataType    Data type
@@ -170,17 +342,122 @@ public class PeerMessage {
      */
     public PeerMessage(MessageType messageType, DataType dataType, byte[] data, byte[] modelHash,
             String inputName, int[] indices) {
-        this.messageNumber = messageCounter;
-        messageCounter++;
+        this.messageNumber = messageCounter.getAndIncrement();
         this.messageType = messageType;
         this.dataTye = dataType;
-        this.data = ByteBuffer.allocate(data.length);
-        this.data.put(data);
-        this.modelHash = modelHash;
+        this.data = ByteBuffer.wrap(data);
+        this.modelHash = ByteBuffer.wrap(modelHash);
         this.inputName = inputName;
-        this.inputNameLength = this.inputName.getBytes(StandardCharsets.UTF_8).length;
-        this.indicesLength = indices.length * DataType.INT.getDataTypeSize();
-        this.indices = indices;
+        this.inputNameBytes = ByteBuffer.wrap(inputName.getBytes(StandardCharsets.UTF_8));
+        this.indicesArray = indices;
+        this.indices = IntBuffer.wrap(indices);
+    }
+
+    /**
+     * Construct for execute message with a result encoding. The input data is not
+     * copied and must not be changed until the message is sent.
+     * 
+     * @param messageType Message type
+     * @param dataType    Data type
+     * @param data        byte array of data
+     * @param modelHash   byte array of model hash
+     * @param inputName   String input name of model
+     * @param indices     Reduction indicies to reduce model
+     * @param encoding    Encoding of the results. Used for models with float
+     *                    outputs, other results are sent raw.
+     */
+    public PeerMessage(MessageType messageType, DataType dataType, byte[] data, byte[] modelHash,
+            String inputName, int[] indices, ResultEncoding encoding) {
+        this(messageType, dataType, data, modelHash, inputName, indices);
+        this.encoding = encoding;
+    }
+
+    /**
+     * Construct for execute message with an explicit input shape. The input data
+     * is not copied and must not be changed until the message is sent.
+     * 
+     * @param dataType  Data type
+     * @param data      byte array of data in big endian byte order
+     * @param shape     shape of the input tensor, e.g. [1][3][224][224]
+     * @param modelHash byte array of model hash
+     * @param inputName String input name of model
+     * @param indices   Reduction indicies to reduce model
+     * @param encoding  Encoding of the results
+     */
+    public PeerMessage(DataType dataType, byte[] data, long[] shape, byte[] modelHash, String inputName,
+            int[] indices, ResultEncoding encoding) {
+        this(MessageType.EXECUTE, dataType, data, modelHash, inputName, indices, encoding);
+        this.shape = shape;
+    }
+
+    /**
+     * Construct for execute message of a model with several inputs. The input
+     * data is not copied and must not be changed until the message is sent.
+     * 
+     * @param inputs    named inputs of the model
+     * @param modelHash byte array of model hash
+     * @param indices   Reduction indicies to reduce model
+     * @param encoding  Encoding of the results
+     */
+    public PeerMessage(List<Input> inputs, byte[] modelHash, int[] indices, ResultEncoding encoding) {
+        this(MessageType.EXECUTE, inputs.get(0).dataType, new byte[0], modelHash, inputs.get(0).getName(), indices,
+                encoding);
+        this.data = inputs.get(0).data;
+        this.shape = inputs.get(0).shape;
+        this.extraInputs = new ArrayList<Input>(inputs.subList(1, inputs.size()));
+    }
+
+    /**
+     * Construct for execute batch message. All inputs need to have the same
+     * length.
+     * 
+     * @param dataType  Data type
+     * @param inputs    byte arrays of the input data, one per inference
+     * @param modelHash byte array of model hash
+     * @param inputName String input name of model
+     * @param indices   Reduction indicies to reduce model
+     * @throws IllegalArgumentException if the inputs differ in length
+     */
+    public PeerMessage(DataType dataType, List<byte[]> inputs, byte[] modelHash, String inputName, int[] indices) {
+        this(dataType, inputs, modelHash, inputName, indices, ResultEncoding.RAW);
+    }
+
+    /**
+     * Construct for execute batch message with a result encoding. All inputs need
+     * to have the same length.
+     * 
+     * @param dataType  Data type
+     * @param inputs    byte arrays of the input data, one per inference
+     * @param modelHash byte array of model hash
+     * @param inputName String input name of model
+     * @param indices   Reduction indicies to reduce model
+     * @param encoding  Encoding of the results
+     * @throws IllegalArgumentException if the inputs differ in length
+     */
+    public PeerMessage(DataType dataType, List<byte[]> inputs, byte[] modelHash, String inputName, int[] indices,
+            ResultEncoding encoding) {
+        this(MessageType.EXECUTE_BATCH, dataType, concat(inputs), modelHash, inputName, indices, encoding);
+        this.batchSize = inputs.size();
+    }
+
+    /**
+     * Construct for execute batch message with an explicit input shape of each
+     * inference. All inputs need to have the same length.
+     * 
+     * @param dataType  Data type
+     * @param inputs    byte arrays of the input data in big endian byte order,
+     *                  one per inference
+     * @param shape     shape of the input tensor of one inference
+     * @param modelHash byte array of model hash
+     * @param inputName String input name of model
+     * @param indices   Reduction indicies to reduce model
+     * @param encoding  Encoding of the results
+     * @throws IllegalArgumentException if the inputs differ in length
+     */
+    public PeerMessage(DataType dataType, List<byte[]> inputs, long[] shape, byte[] modelHash, String inputName,
+            int[] indices, ResultEncoding encoding) {
+        this(dataType, inputs, modelHash, inputName, indices, encoding);
+        this.shape = shape;
     }
 
     /**
@@ -191,10 +468,60 @@ public class PeerMessage {
      * @param onnxTime      execution time
      */
     public PeerMessage(ByteBuffer data, long messageNumber, long onnxTime) {
+        this(data, messageNumber, onnxTime, ResultEncoding.RAW);
+    }
+
+    /**
+     * Constructor for a Result message with encoded results
+     * 
+     * @param data          encoded result data as byte buffer
+     * @param messageNumber Message number
+     * @param onnxTime      execution time
+     * @param encoding      encoding of the result data
+     */
+    public PeerMessage(ByteBuffer data, long messageNumber, long onnxTime, ResultEncoding encoding) {
         this.messageNumber = messageNumber;
         this.messageType = MessageType.RESULT;
         this.data = data;
         this.onnxTime = onnxTime;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Constructor for a Result batch message
+     * 
+     * @param results       result data of each inference in the batch
+     * @param messageNumber Message number
+     * @param onnxTime      execution time
+     */
+    public PeerMessage(ByteBuffer[] results, long messageNumber, long onnxTime) {
+        this(results, messageNumber, onnxTime, ResultEncoding.RAW);
+    }
+
+    /**
+     * Constructor for a Result batch message with encoded results
+     * 
+     * @param results       encoded result data of each inference in the batch
+     * @param messageNumber Message number
+     * @param onnxTime      execution time
+     * @param encoding      encoding of the result data
+     */
+    public PeerMessage(ByteBuffer[] results, long messageNumber, long onnxTime, ResultEncoding encoding) {
+        this.messageNumber = messageNumber;
+        this.messageType = MessageType.RESULT_BATCH;
+        this.onnxTime = onnxTime;
+        this.encoding = encoding;
+        this.batchSize = results.length;
+        int size = 0;
+        for (ByteBuffer result : results) {
+            size += intLength + result.remaining();
+        }
+        this.data = ByteBuffer.allocate(size);
+        for (ByteBuffer result : results) {
+            this.data.putInt(result.remaining());
+            this.data.put(result.duplicate());
+        }
+        this.data.position(0);
     }
 
     /**
@@ -206,56 +533,510 @@ public class PeerMessage {
     public PeerMessage(long messageNumber, byte[] modelHash) {
         this.messageNumber = messageNumber;
         this.messageType = MessageType.PING;
-        this.modelHash = modelHash;
+        this.modelHash = ByteBuffer.wrap(modelHash);
+    }
+
+    /**
+     * Construct a message that only consists of the header, e.g. a REJECTED
+     * message
+     * 
+     * @param messageType   Message type
+     * @param messageNumber message number
+     */
+    public PeerMessage(MessageType messageType, long messageNumber) {
+        this.messageNumber = messageNumber;
+        this.messageType = messageType;
+    }
+
+    /**
+     * Returns the payload of the message. For received messages this is the part
+     * of the packet following the header.
+     * 
+     * @return byte buffer view of the payload
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    /**
+     * Returns the input rows of an execute or execute batch message. An execute
+     * message has a single row.
+     * 
+     * @return byte buffer view of each row of the payload
+     */
+    public ByteBuffer[] getRows() {
+        return split(data, batchSize);
+    }
+
+    /**
+     * Checks if the payload and the further inputs of an execute message split
+     * into rows of equal length, one per inference
+     * 
+     * @return true if every input has the same number of bytes per row
+     */
+    public boolean hasEqualRows() {
+        if (batchSize <= 0 || data.limit() % batchSize != 0) {
+            return false;
+        }
+        for (Input input : extraInputs) {
+            if (input.data.remaining() % batchSize != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the inputs besides the first one of an execute message for models
+     * with several inputs. The first input is described by getInputName,
+     * getDataType, getShape and getRows.
+     * 
+     * @return further inputs. Empty for models with one input.
+     */
+    public List<Input> getExtraInputs() {
+        return extraInputs;
+    }
+
+    /**
+     * Requests only some outputs of the model. The provider runs only the part of
+     * the graph these outputs need and returns them in the given order. Each
+     * output is reduced with the indicies of the message.
+     * 
+     * @param outputNames output names of the model. Empty = all outputs in model
+     *                    order.
+     */
+    public void setOutputNames(List<String> outputNames) {
+        this.outputNames = new ArrayList<String>(outputNames);
+        this.outputNameBytes = new ArrayList<ByteBuffer>();
+        for (String name : outputNames) {
+            outputNameBytes.add(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Returns the requested outputs of an execute message. Decoded names are
+     * shared between messages.
+     * 
+     * @return output names in the order of the result. Empty if all outputs are
+     *         requested.
+     */
+    public List<String> getOutputNames() {
+        if (outputNames == null) {
+            List<String> decoded = new ArrayList<String>(outputNameBytes.size());
+            for (ByteBuffer nameBytes : outputNameBytes) {
+                decoded.add(decodeName(nameBytes));
+            }
+            outputNames = decoded;
+        }
+        return outputNames;
+    }
+
+    /**
+     * Returns the results of a result batch message
+     * 
+     * @return byte buffer view of the result of each inference in order of the
+     *         inputs
+     */
+    public List<ByteBuffer> getResults() {
+        ByteBuffer payload = getData();
+        List<ByteBuffer> results = new ArrayList<ByteBuffer>();
+        while (payload.remaining() >= intLength) {
+            int length = payload.getInt();
+            results.add(view(payload, length));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the result of a result message decoded to floats
+     * 
+     * @return float values of the result
+     * @throws IndexOutOfBoundsException if the provider sent an error code
+     */
+    public float[] getFloats() {
+        return decode(getData());
+    }
+
+    /**
+     * Returns the results of a result batch message decoded to floats
+     * 
+     * @return float values of each result in order of the inputs. Null for
+     *         results the provider sent an error code for.
+     */
+    public List<float[]> getFloatResults() {
+        List<float[]> results = new ArrayList<float[]>();
+        for (ByteBuffer result : getResults()) {
+            results.add(result.remaining() == 1 ? null : decode(result));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the requested encoding of an execute message or the encoding of a
+     * result message
+     * 
+     * @return result encoding
+     */
+    public ResultEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Sets the time the client waits for the result of an execute message. The
+     * provider rejects the message instead of executing it or sending its result
+     * after this time.
+     * 
+     * @param timeout time in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the time the client waits for the result of an execute message
+     * 
+     * @return time in milliseconds. The scheduler timeout if the client did not
+     *         set one.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Decodes one result to floats
+     * 
+     * @param result encoded result
+     * @return float values
+     * @throws IndexOutOfBoundsException if the result is an error code
+     */
+    private float[] decode(ByteBuffer result) {
+        if (result.remaining() == 1) {
+            throw new IndexOutOfBoundsException(ONNXRuntime.Error.messageOf(result.get(result.position())));
+        }
+        return ResultCodec.decode(result, encoding);
+    }
+
+    /**
+     * Returns the number of inferences in an execute batch message
+     * 
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the model hash of an execute or ping message as read-only view,
+     * e.g. for looking up the model cache
+     * 
+     * @return model hash
+     */
+    public ByteBuffer getModelHash() {
+        return modelHash.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a copy of the model hash of an execute or ping message
+     * 
+     * @return byte array of the model hash
+     */
+    public byte[] getModelHashBytes() {
+        byte[] hash = new byte[modelHash.remaining()];
+        modelHash.duplicate().get(hash);
+        return hash;
+    }
+
+    /**
+     * Returns the input name of an execute message. Decoded names are shared
+     * between messages.
+     * 
+     * @return input name of the model
+     */
+    public String getInputName() {
+        if (inputName == null) {
+            inputName = decodeName(inputNameBytes);
+        }
+        return inputName;
+    }
+
+    /**
+     * Returns the data type of an execute message
+     * 
+     * @return data type of the input data
+     */
+    public DataType getDataType() {
+        return dataTye;
+    }
+
+    /**
+     * Returns the input shape of one inference of an execute message
+     * 
+     * @return shape of the input tensor. Null if the message has no shape and
+     *         the input is a [1][n] tensor.
+     */
+    public long[] getShape() {
+        return shape;
+    }
+
+    /**
+     * Returns the reduction indicies of an execute message as view
+     * 
+     * @return reduction indicies
+     */
+    public IntBuffer getIndexBuffer() {
+        return indices.duplicate();
+    }
+
+    /**
+     * Returns the reduction indicies of an execute message
+     * 
+     * @return reduction indicies
+     */
+    public int[] getIndices() {
+        if (indicesArray == null) {
+            indicesArray = new int[indices.remaining()];
+            indices.duplicate().get(indicesArray);
+        }
+        return indicesArray;
+    }
+
+    /**
+     * Returns the number of bytes of the serialized message
+     * 
+     * @return length of the serialized message
+     */
+    public int getMessageLength() {
+        switch (messageType) {
+            case EXECUTE:
+            case EXECUTE_BATCH:
+                return longLength + messageTypeLength + dataTypeLength + encodingLength + longLength + hashlength
+                        + intLength + inputNameBytes.remaining()
+                        + intLength + indices.remaining() * intLength
+                        + intLength + (shape == null ? 0 : shape.length * longLength)
+                        + intLength + extraInputsLength()
+                        + intLength + outputNamesLength()
+                        + (messageType == MessageType.EXECUTE_BATCH ? intLength : 0) + data.limit();
+            case RESULT:
+            case RESULT_BATCH:
+                return longLength + messageTypeLength + longLength + encodingLength + data.limit();
+            case PING:
+                return longLength + messageTypeLength + hashlength;
+            case REJECTED:
+                return longLength + messageTypeLength;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Serializes the peer message into a buffer, e.g. a reused send buffer
+     * 
+     * @param byteBuffer buffer with at least getMessageLength() bytes remaining
+     */
+    public void writeTo(ByteBuffer byteBuffer) {
+        switch (messageType) {
+            case EXECUTE:
+            case EXECUTE_BATCH:
+                byteBuffer.putLong(messageNumber);
+                byteBuffer.put(messageType.id);
+                byteBuffer.put(dataTye.id);
+                byteBuffer.put(encoding.id);
+                byteBuffer.putLong(timeout);
+                byteBuffer.put(modelHash.duplicate());
+                byteBuffer.putInt(inputNameBytes.remaining());
+                byteBuffer.put(inputNameBytes.duplicate());
+                // adding indicies
+                byteBuffer.putInt(indices.remaining() * intLength);
+                byteBuffer.asIntBuffer().put(indices.duplicate());
+                byteBuffer.position(byteBuffer.position() + indices.remaining() * intLength);
+                writeShape(byteBuffer, shape);
+                byteBuffer.putInt(extraInputs.size());
+                for (Input input : extraInputs) {
+                    byteBuffer.putInt(input.nameBytes.remaining());
+                    byteBuffer.put(input.nameBytes.duplicate());
+                    byteBuffer.put(input.dataType.id);
+                    writeShape(byteBuffer, input.shape);
+                    byteBuffer.putInt(input.data.remaining());
+                    byteBuffer.put(input.data.duplicate());
+                }
+                byteBuffer.putInt(outputNameBytes.size());
+                for (ByteBuffer nameBytes : outputNameBytes) {
+                    byteBuffer.putInt(nameBytes.remaining());
+                    byteBuffer.put(nameBytes.duplicate());
+                }
+                if (messageType == MessageType.EXECUTE_BATCH) {
+                    byteBuffer.putInt(batchSize);
+                }
+                byteBuffer.put(data.duplicate().position(0));
+                break;
+            case RESULT:
+            case RESULT_BATCH:
+                byteBuffer.putLong(messageNumber);
+                byteBuffer.put(messageType.id);
+                byteBuffer.putLong(onnxTime);
+                byteBuffer.put(encoding.id);
+                byteBuffer.put(data.duplicate().position(0));
+                break;
+            case PING:
+                byteBuffer.putLong(messageNumber);
+                byteBuffer.put(MessageType.PING.id);
+                byteBuffer.put(modelHash.duplicate());
+                break;
+            case REJECTED:
+                byteBuffer.putLong(messageNumber);
+                byteBuffer.put(MessageType.REJECTED.id);
+                break;
+            default:
+                byteBuffer.put((byte) 0);
+                break;
+        }
     }
 
     /**
      * Returns the peer message serialized as byte array for sending over drasyl
-     * node
+     * node. The array is allocated with its exact size and filled in one pass.
+     * It can not be reused since drasyl serializes it asynchronously.
      * 
      * @return byte array representation of peer message
      */
     public byte[] getMessageBytes() {
-        if (this.messageType == MessageType.EXECUTE) {
-            ByteBuffer byteBuffer = ByteBuffer
-                    .allocate(longLength + messageTypeLength + dataTypeLength + hashlength
-                            + DataType.INT.getDataTypeSize() + inputNameLength
-                            + DataType.INT.getDataTypeSize() + indicesLength + data.limit());
-            byteBuffer.putLong(messageNumber);
-            byteBuffer.put(messageType.id);
-            byteBuffer.put(dataTye.id);
-            byteBuffer.put(modelHash);
-            byteBuffer.putInt(inputNameLength);
-            byteBuffer.put(inputName.getBytes(StandardCharsets.UTF_8));
-            // adding indicies
-            byteBuffer.putInt(indicesLength);
-
-            for (int i : indices) {
-                byteBuffer.putInt(i);
+        byte[] bytes = new byte[getMessageLength()];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Number of bytes of the serialized extra inputs
+     * 
+     * @return length of the extra inputs
+     */
+    private int extraInputsLength() {
+        int length = 0;
+        for (Input input : extraInputs) {
+            length += input.length();
+        }
+        return length;
+    }
+
+    /**
+     * Number of bytes of the serialized output names
+     * 
+     * @return length of the output names
+     */
+    private int outputNamesLength() {
+        int length = 0;
+        for (ByteBuffer nameBytes : outputNameBytes) {
+            length += intLength + nameBytes.remaining();
+        }
+        return length;
+    }
+
+    /**
+     * Reads a shape as rank followed by the dimensions
+     * 
+     * @param buffer buffer to read from
+     * @return shape. Null for rank 0.
+     */
+    private static long[] readShape(ByteBuffer buffer) {
+        int rank = buffer.getInt();
+        if (rank == 0) {
+            return null;
+        }
+        long[] shape = new long[rank];
+        for (int i = 0; i < rank; i++) {
+            shape[i] = buffer.getLong();
+        }
+        return shape;
+    }
+
+    /**
+     * Writes a shape as rank followed by the dimensions
+     * 
+     * @param buffer buffer to write to
+     * @param shape  shape. Null is written as rank 0.
+     */
+    private static void writeShape(ByteBuffer buffer, long[] shape) {
+        buffer.putInt(shape == null ? 0 : shape.length);
+        if (shape != null) {
+            for (long dimension : shape) {
+                buffer.putLong(dimension);
+            }
+        }
+    }
+
+    /**
+     * Decodes an input or output name. Decoded names are shared between messages.
+     * 
+     * @param nameBytes UTF-8 bytes of the name
+     * @return name
+     */
+    private static String decodeName(ByteBuffer nameBytes) {
+        String name = names.get(nameBytes);
+        if (name == null) {
+            name = StandardCharsets.UTF_8.decode(nameBytes.duplicate()).toString();
+            if (names.size() >= MAX_NAMES) {
+                names.clear();
             }
-            data.position(0);
-            byteBuffer.put(data);
-            return byteBuffer.array();
-        } else if (this.messageType == MessageType.RESULT) {
-            ByteBuffer byteBuffer = ByteBuffer
-                    .allocate(longLength + messageTypeLength + longLength + data.limit());
-            byteBuffer.putLong(messageNumber);
-            byteBuffer.put(messageType.id);
-            byteBuffer.putLong(onnxTime);
-            data.position(0);
-            byteBuffer.put(data);
-            return byteBuffer.array();
-        } else if (this.messageType == MessageType.PING) {
-            ByteBuffer byteBuffer = ByteBuffer
-                    .allocate(longLength + messageTypeLength + hashlength);
-            byteBuffer.putLong(messageNumber);
-            byteBuffer.put(MessageType.PING.id);
-            byteBuffer.put(modelHash);
-            return byteBuffer.array();
-        } else {
-            return ByteBuffer.allocate(1).array();
+            names.put(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)), name);
         }
+        return name;
+    }
+
+    /**
+     * Splits a payload into equally sized rows
+     * 
+     * @param data      payload
+     * @param batchSize number of rows
+     * @return byte buffer view of each row
+     */
+    private static ByteBuffer[] split(ByteBuffer data, int batchSize) {
+        int rowBytes = data.limit() / batchSize;
+        ByteBuffer[] rows = new ByteBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            ByteBuffer row = data.duplicate();
+            row.limit((i + 1) * rowBytes);
+            row.position(i * rowBytes);
+            rows[i] = row.slice();
+        }
+        return rows;
+    }
+
+    /**
+     * Reads a view of the next bytes of a buffer and advances the buffer
+     * 
+     * @param buffer buffer to read from
+     * @param length number of bytes
+     * @return byte buffer view of the bytes
+     */
+    private static ByteBuffer view(ByteBuffer buffer, int length) {
+        ByteBuffer view = buffer.slice();
+        view.limit(length);
+        buffer.position(buffer.position() + length);
+        return view;
+    }
 
+    /**
+     * Concatenates the inputs of a batch. The receiver splits them by length, so
+     * all inputs need the same length.
+     * 
+     * @param inputs byte arrays of the input data
+     * @return byte array of all inputs in order
+     * @throws IllegalArgumentException if the inputs differ in length
+     */
+    private static byte[] concat(List<byte[]> inputs) {
+        int size = 0;
+        for (byte[] input : inputs) {
+            if (input.length != inputs.get(0).length) {
+                throw new IllegalArgumentException("Inputs of a batch need the same length, got " + input.length
+                        + " and " + inputs.get(0).length + " bytes");
+            }
+            size += input.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] input : inputs) {
+            buffer.put(input);
+        }
+        return buffer.array();
     }
 
 }
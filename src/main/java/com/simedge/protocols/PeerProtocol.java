@@ -1,130 +1,420 @@
 package com.simedge.protocols;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.drasyl.identity.DrasylAddress;
 import com.simedge.peer.ConnectionPool;
+import com.simedge.runtime.QueuedMessage;
 import com.simedge.runtime.ONNX.ONNXRuntime;
-import com.simedge.scheduling.LocalScheduler;
+import com.simedge.runtime.ONNX.TensorFactory;
 
-import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OrtException;
 
 public class PeerProtocol {
 
+    // runtimes that are created and warmed up in the background, one per model
+    private static ConcurrentHashMap<ByteBuffer, CompletableFuture<ONNXRuntime>> warming = new ConcurrentHashMap<ByteBuffer, CompletableFuture<ONNXRuntime>>();
+    private static ExecutorService warmer = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "simedge-warmup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
-     * Handle the peer message for execution with ONNX
+     * Handle the peer message. Execute messages are handed to the execution
+     * engine, all other messages are handled directly.
      * 
      * @param peerMessage peer message
      * @param source      Source of receive event for sending result.
      */
     public static void handleMessage(PeerMessage peerMessage, DrasylAddress source) {
-        // TODO move to runtime
-        if (peerMessage.messageType == PeerMessage.MessageType.EXECUTE) {
-            ByteBuffer results = ByteBuffer.allocate(1);
-            try {
-                ONNXRuntime runtime = null;
-                if ((runtime = ConnectionPool.modelCache
-                        .getONNXRuntime(ByteBuffer.wrap(peerMessage.modelHash))) == null) {
-
-                    var model = ConnectionPool.modelCache.get(ByteBuffer.wrap(peerMessage.modelHash));
-                    if (model == null) {
-                        // if model is downloading message is thrown away
-                        ConnectionPool.node.sendResultMessage(source.toString(),
-                                new PeerMessage(ByteBuffer.allocate(0), 0L, 0L));
-
-                        return;
-                    }
-                    runtime = new ONNXRuntime(model, peerMessage.indices, peerMessage.dataTye.getDataTypeSize());
-                    ConnectionPool.modelCache.putONNXRuntime(ByteBuffer.wrap(peerMessage.modelHash), runtime);
+        if (peerMessage.messageType == PeerMessage.MessageType.EXECUTE
+                || peerMessage.messageType == PeerMessage.MessageType.EXECUTE_BATCH) {
+            ConnectionPool.executionEngine.submit(peerMessage, source);
+
+        } else if (peerMessage.messageType == PeerMessage.MessageType.RESULT
+                || peerMessage.messageType == PeerMessage.MessageType.RESULT_BATCH) {
+            // handle result
+            // ONNXRuntime.printFloatBuffer(ByteBuffer.wrap(peerMessage.data.array()).asFloatBuffer());
+            ConnectionPool.pendingRequests.complete(peerMessage);
+            ConnectionPool.scheduler.updateMessageController(source, peerMessage);
+
+        } else if (peerMessage.messageType == PeerMessage.MessageType.REJECTED) {
+            // provider queue was full
+            ConnectionPool.pendingRequests.fail(peerMessage.messageNumber,
+                    new RejectedExecutionException("Resource " + source + " rejected the message"));
+            ConnectionPool.scheduler.rejectMessage(source, peerMessage);
+
+        } else if (peerMessage.messageType == PeerMessage.MessageType.PING) {
+            // handle PING by answering once the runtime is warm, so the client only
+            // schedules requests to a warm provider. The time of the download and the
+            // warm-up is reported as onnx time, so the client can subtract it from
+            // the measured RTT.
+            long messageNumber = peerMessage.messageNumber;
+            long start = System.currentTimeMillis();
+            prepareRuntime(ByteBuffer.wrap(peerMessage.getModelHashBytes())).whenComplete((runtime, e) -> {
+                System.out.println("Sending back Ping message");
+                ConnectionPool.node.sendResultMessage(source.toString(), new PeerMessage(ByteBuffer.allocate(1),
+                        messageNumber, System.currentTimeMillis() - start));
+            });
+        } else {
+            System.out.println("No Peer message type type");
+
+        }
+
+    }
+
+    /**
+     * Execute the peer message with ONNX and send back the result. Runs on a
+     * worker thread of the execution engine. All inputs of an execute batch
+     * message are answered with one result batch message. The message is rejected
+     * if the result is not ready before its client gives up.
+     * 
+     * @param message queued execute or execute batch message
+     */
+    public static void execute(QueuedMessage message) {
+        PeerMessage peerMessage = message.peerMessage;
+        DrasylAddress source = message.source;
+        if (!peerMessage.hasEqualRows()) {
+            reject(peerMessage, source, "Rows of unequal length");
+            return;
+        }
+        try {
+            ONNXRuntime runtime = loadRuntime(peerMessage);
+            if (runtime == null) {
+                reject(peerMessage, source, "Model not availible");
+                return;
+            }
+            long start = System.currentTimeMillis();
+
+            ByteBuffer[] rows = peerMessage.getRows();
+            IntBuffer[] indices = new IntBuffer[rows.length];
+            Arrays.fill(indices, peerMessage.getIndexBuffer());
+
+            ByteBuffer[] results = run(runtime, peerMessage, rows, indices);
+            PeerMessage.ResultEncoding encoding = encoding(runtime, peerMessage, results);
+            for (int i = 0; i < results.length; i++) {
+                results[i] = encode(results[i], encoding);
+            }
+            long onnxTime = System.currentTimeMillis() - start;
+            if (message.expired()) {
+                reject(peerMessage, source, "Execution took " + onnxTime + " ms");
+                return;
+            }
+
+            System.out.println("Sending results: " + peerMessage.messageNumber);
+            if (peerMessage.messageType == PeerMessage.MessageType.EXECUTE_BATCH) {
+                ConnectionPool.node.sendResultMessage(source.toString(),
+                        new PeerMessage(results, peerMessage.messageNumber, onnxTime, encoding));
+            } else {
+                ConnectionPool.node.sendResultMessage(source.toString(),
+                        new PeerMessage(results[0], peerMessage.messageNumber, onnxTime, encoding));
+            }
+
+        } catch (OrtException | RuntimeException e) {
+            // e.g. an input that does not match the model
+            reject(peerMessage, source, "Execution failed: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Execute a batch of peer messages for the same model and input with a single
+     * run of the model and send back the result of each message. Messages whose
+     * client gave up during the run are rejected.
+     * 
+     * @param batch execute messages with the same model, input, row size and
+     *              requested outputs. Each message keeps its own reduction.
+     */
+    public static void executeBatch(List<QueuedMessage> batch) {
+        PeerMessage first = batch.get(0).peerMessage;
+        try {
+            ONNXRuntime runtime = loadRuntime(first);
+            if (runtime == null) {
+                for (var message : batch) {
+                    reject(message.peerMessage, message.source, "Model not availible");
                 }
-                long start = System.currentTimeMillis();
-
-                OnnxTensor input_tensor;
-                switch (peerMessage.dataTye) {
-                    case BYTE:
-
-                        input_tensor = OnnxTensor.createTensor(runtime.env, new byte[][] { peerMessage.data.array() });
-                        break;
-                    case INT:
-
-                        int[] data = new int[peerMessage.data.remaining() / peerMessage.dataTye.getDataTypeSize()];
-                        for (int i = 0; i < data.length; i++) {
-                            data[i] = peerMessage.data.getInt();
-                        }
-                        input_tensor = OnnxTensor.createTensor(runtime.env, new int[][] { data });
-                        break;
-                    case LONG:
-
-                        long[] dataL = new long[peerMessage.data.remaining() / peerMessage.dataTye.getDataTypeSize()];
-                        for (int i = 0; i < dataL.length; i++) {
-                            dataL[i] = peerMessage.data.getLong();
-                        }
-                        input_tensor = OnnxTensor.createTensor(runtime.env, new long[][] { dataL });
-                        break;
-                    case FLOAT:
-
-                        float[] dataF = new float[peerMessage.data.remaining() / peerMessage.dataTye.getDataTypeSize()];
-                        for (int i = 0; i < dataF.length; i++) {
-                            dataF[i] = peerMessage.data.getFloat();
-                        }
-
-                        input_tensor = OnnxTensor.createTensor(runtime.env, new float[][] { dataF });
-                        break;
-                    case DOUBLE:
-                        double[] dataD = new double[peerMessage.data.remaining()
-                                / peerMessage.dataTye.getDataTypeSize()];
-                        for (int i = 0; i < dataD.length; i++) {
-                            dataD[i] = peerMessage.data.getDouble();
-                        }
-
-                        input_tensor = OnnxTensor.createTensor(runtime.env, new double[][] { dataD });
-                        break;
-                    case CHAR:
-
-                        char[] dataC = new char[peerMessage.data.remaining() / peerMessage.dataTye.getDataTypeSize()];
-                        for (int i = 0; i < dataC.length; i++) {
-                            dataC[i] = peerMessage.data.getChar();
-                        }
-                        input_tensor = OnnxTensor.createTensor(runtime.env, new char[][] { dataC });
-                        break;
-                    default:
-
-                        input_tensor = OnnxTensor.createTensor(runtime.env, peerMessage.data.array());
-                        break;
+                return;
+            }
+            long start = System.currentTimeMillis();
+
+            ByteBuffer[] rows = new ByteBuffer[batch.size()];
+            IntBuffer[] indices = new IntBuffer[batch.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = batch.get(i).peerMessage.getData();
+                indices[i] = batch.get(i).peerMessage.getIndexBuffer();
+            }
+
+            ByteBuffer[] results = run(runtime, first, rows, indices);
+            long onnxTime = System.currentTimeMillis() - start;
+
+            System.out.println("Sending batch results: " + rows.length + " messages");
+            for (int i = 0; i < results.length; i++) {
+                if (batch.get(i).expired()) {
+                    reject(batch.get(i).peerMessage, batch.get(i).source, "Execution took " + onnxTime + " ms");
+                    continue;
                 }
+                // every message of the batch keeps its own encoding
+                PeerMessage.ResultEncoding encoding = encoding(runtime, batch.get(i).peerMessage, results[i]);
+                ConnectionPool.node.sendResultMessage(batch.get(i).source.toString(),
+                        new PeerMessage(encode(results[i], encoding), batch.get(i).peerMessage.messageNumber,
+                                onnxTime, encoding));
+            }
+
+        } catch (OrtException | RuntimeException e) {
+            // e.g. an input that does not match the model
+            for (var message : batch) {
+                reject(message.peerMessage, message.source, "Execution failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rejects an execute message, so the client fails its request right away and
+     * the scheduler counts the rejection instead of waiting for a timeout
+     * 
+     * @param peerMessage execute or execute batch message
+     * @param source      Source of receive event for sending the rejection
+     * @param reason      reason that is logged
+     */
+    private static void reject(PeerMessage peerMessage, DrasylAddress source, String reason) {
+        System.out.println(reason + ". Rejecting message: " + peerMessage.messageNumber);
+        ConnectionPool.node.sendResultMessage(source.toString(),
+                new PeerMessage(PeerMessage.MessageType.REJECTED, peerMessage.messageNumber));
+    }
 
-                Map<String, OnnxTensor> dense_input = Map.of(peerMessage.inputName, input_tensor);
-                results = runtime.execute(dense_input);
-                System.out.println("Sending results: " + peerMessage.messageNumber);
+    /**
+     * Run the model on one or more input rows. Several rows are stacked into a
+     * single [B][n] tensor, or [B][...] for rows with a shape of batch size 1, if
+     * every model input has a batch dimension. Otherwise the model is run once
+     * per row.
+     * 
+     * @param runtime runtime of the model
+     * @param first   message that describes input name, data type and shape of
+     *                the rows and carries the further inputs and the requested
+     *                outputs of the model
+     * @param rows    rows of the first input
+     * @param indices reduction indicies of each row
+     * @return reduced result of each row in order of the rows
+     * @throws OrtException
+     */
+    private static ByteBuffer[] run(ONNXRuntime runtime, PeerMessage first, ByteBuffer[] rows,
+            IntBuffer[] indices) throws OrtException {
+        // only messages with a single input are batched together, so further inputs
+        // always have as many rows as the first one
+        List<PeerMessage.Input> extraInputs = first.getExtraInputs();
+        ByteBuffer[][] extraRows = new ByteBuffer[extraInputs.size()][];
+        boolean stack = rows.length > 1 && batchable(runtime, first.getInputName(), first.getShape());
+        for (int j = 0; j < extraRows.length; j++) {
+            extraRows[j] = extraInputs.get(j).getRows(rows.length);
+            stack &= batchable(runtime, extraInputs.get(j).getName(), extraInputs.get(j).getShape());
+        }
 
-                if ((System.currentTimeMillis() - start) < LocalScheduler.TIMEOUT) {
-                    ConnectionPool.node.sendResultMessage(source.toString(),
-                            new PeerMessage(results, peerMessage.messageNumber, (System.currentTimeMillis() - start)));
+        if (stack) {
+            try (var inputs = new TensorFactory.ModelInputs()) {
+                inputs.put(first.getInputName(), TensorFactory.createTensor(runtime.env, first.dataTye, rows,
+                        batchShape(first.getShape(), first.dataTye, rows)));
+                for (int j = 0; j < extraRows.length; j++) {
+                    PeerMessage.Input input = extraInputs.get(j);
+                    inputs.put(input.getName(), TensorFactory.createTensor(runtime.env, input.getDataType(),
+                            extraRows[j], batchShape(input.getShape(), input.getDataType(), extraRows[j])));
                 }
+                return runtime.executeBatch(inputs.map(), first.getOutputNames(), indices);
+            }
+        }
 
-            } catch (OrtException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        ByteBuffer[] results = new ByteBuffer[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            try (var inputs = new TensorFactory.ModelInputs()) {
+                ByteBuffer[] row = new ByteBuffer[] { rows[i] };
+                inputs.put(first.getInputName(), TensorFactory.createTensor(runtime.env, first.dataTye, row,
+                        batchShape(first.getShape(), first.dataTye, row)));
+                for (int j = 0; j < extraRows.length; j++) {
+                    PeerMessage.Input input = extraInputs.get(j);
+                    row = new ByteBuffer[] { extraRows[j][i] };
+                    inputs.put(input.getName(), TensorFactory.createTensor(runtime.env, input.getDataType(), row,
+                            batchShape(input.getShape(), input.getDataType(), row)));
+                }
+                ByteBuffer result = runtime.execute(inputs.map(), first.getOutputNames(), indices[i]);
+                // the runtime reuses its output buffer so every row needs its own copy
+                results[i] = rows.length == 1 ? result : ByteBuffer.allocate(result.remaining()).put(result).flip();
             }
+        }
+        return results;
+    }
 
-        } else if (peerMessage.messageType == PeerMessage.MessageType.RESULT) {
-            // handle result
-            // ONNXRuntime.printFloatBuffer(ByteBuffer.wrap(peerMessage.data.array()).asFloatBuffer());
-            ConnectionPool.scheduler.updateMessageController(source, peerMessage);
+    /**
+     * Checks if rows of an input can be stacked into one tensor
+     * 
+     * @param runtime   runtime of the model
+     * @param inputName input name of the model
+     * @param shape     shape of one row. Null = [1][n]
+     * @return true if the input has a batch dimension and the rows have batch
+     *         size 1
+     */
+    private static boolean batchable(ONNXRuntime runtime, String inputName, long[] shape) {
+        return runtime.supportsBatching(inputName) && (shape == null || shape[0] == 1);
+    }
 
-        } else if (peerMessage.messageType == PeerMessage.MessageType.PING) {
-            // handle PING by sending back result instantly
-            ConnectionPool.modelCache.get(ByteBuffer.wrap(peerMessage.modelHash));
-            System.out.println("Sending back Ping message");
-            ConnectionPool.node.sendResultMessage(source.toString(),
-                    new PeerMessage(ByteBuffer.allocate(1), peerMessage.messageNumber, 0L));
-        } else {
-            System.out.println("No Peer message type type");
+    /**
+     * Shape of the tensor of stacked rows
+     * 
+     * @param shape    shape of one row. Null = [1][n]
+     * @param dataType data type of the rows
+     * @param rows     rows to stack
+     * @return [rows][n] without a shape, otherwise the shape with the number of
+     *         rows as first dimension
+     */
+    private static long[] batchShape(long[] shape, PeerMessage.DataType dataType, ByteBuffer[] rows) {
+        if (shape == null) {
+            return new long[] { rows.length, rows[0].remaining() / dataType.getDataTypeSize() };
+        }
+        long[] batch = shape.clone();
+        batch[0] *= rows.length;
+        return batch;
+    }
+
+    /**
+     * Encoding of the results of a message. Compact encodings are only used if
+     * the requested outputs are all floats. FP16 and INT8 fall back to RAW if a
+     * result has values they can not represent, e.g. values beyond the half
+     * precision range for FP16 or infinity and NaN for INT8.
+     * 
+     * @param runtime     runtime of the model
+     * @param peerMessage execute message
+     * @param results     reduced results of the message
+     * @return encoding of the results
+     */
+    private static PeerMessage.ResultEncoding encoding(ONNXRuntime runtime, PeerMessage peerMessage,
+            ByteBuffer... results) {
+        if (!runtime.hasFloatOutputs(peerMessage.getOutputNames())) {
+            return PeerMessage.ResultEncoding.RAW;
+        }
+        for (ByteBuffer result : results) {
+            // error codes are sent as they are
+            if (result.remaining() != 1 && !ResultCodec.canEncode(result, peerMessage.getEncoding())) {
+                return PeerMessage.ResultEncoding.RAW;
+            }
+        }
+        return peerMessage.getEncoding();
+    }
+
+    /**
+     * Encodes a result. Error codes are sent as they are.
+     * 
+     * @param result   reduced result
+     * @param encoding encoding of the result
+     * @return encoded result
+     */
+    private static ByteBuffer encode(ByteBuffer result, PeerMessage.ResultEncoding encoding) {
+        if (encoding == PeerMessage.ResultEncoding.RAW || result.remaining() == 1) {
+            return result;
+        }
+        return ResultCodec.encode(result, encoding);
+    }
+
+    /**
+     * Creates the runtime of a model in the background and runs it once on zero
+     * inputs. The model is downloaded first if it is missing. Concurrent calls for
+     * the same model share the work.
+     * 
+     * @param modelHash hash of the model
+     * @return future of the warm runtime. Completed with null if the model is not
+     *         availible or the runtime could not be created.
+     */
+    public static CompletableFuture<ONNXRuntime> prepareRuntime(ByteBuffer modelHash) {
+        ONNXRuntime runtime = ConnectionPool.modelCache.getONNXRuntime(modelHash);
+        if (runtime != null) {
+            return CompletableFuture.completedFuture(runtime);
+        }
+
+        // the key needs its own copy of the hash instead of a view into a packet
+        byte[] hash = new byte[modelHash.remaining()];
+        modelHash.duplicate().get(hash);
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        CompletableFuture<ONNXRuntime> prepared = new CompletableFuture<ONNXRuntime>();
+        CompletableFuture<ONNXRuntime> running = warming.putIfAbsent(key, prepared);
+        if (running != null) {
+            return running;
+        }
+
+        ConnectionPool.modelCache.loadAsync(key).thenAcceptAsync(model -> {
+            ONNXRuntime warm = null;
+            try {
+                if (model != null && (warm = createRuntime(key)) != null) {
+                    long start = System.currentTimeMillis();
+                    warm.warmUp();
+                    System.out.println("Warmed up model " + ConnectionPool.bytesToHex(hash) + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+            } catch (OrtException e) {
+                System.err.println("Could not warm up model " + ConnectionPool.bytesToHex(hash) + ": "
+                        + e.getMessage());
+            } finally {
+                // removed first so later requests find the runtime in the cache
+                warming.remove(key);
+                prepared.complete(warm);
+            }
+        }, warmer);
+        return prepared;
+    }
+
+    /**
+     * Get the initialized runtime for the model of a message. Creates the runtime
+     * if the model is cached but has no runtime yet. Waits for a warm-up of the
+     * model that is in progress instead of creating a second runtime.
+     * 
+     * @param peerMessage execute message
+     * @return runtime of the model. Null if the model is not availible yet.
+     * @throws OrtException
+     */
+    private static ONNXRuntime loadRuntime(PeerMessage peerMessage) throws OrtException {
+        ONNXRuntime runtime = null;
+        if ((runtime = ConnectionPool.modelCache.getONNXRuntime(peerMessage.getModelHash())) == null) {
 
+            // cache keys need their own copy of the hash instead of a view into the packet
+            ByteBuffer modelHash = ByteBuffer.wrap(peerMessage.getModelHashBytes());
+            // maps the model and downloads it if it is missing
+            if (ConnectionPool.modelCache.get(modelHash) == null) {
+                return null;
+            }
+            CompletableFuture<ONNXRuntime> prepared = warming.get(modelHash);
+            if (prepared != null) {
+                return prepared.join();
+            }
+            runtime = createRuntime(modelHash);
         }
+        return runtime;
+    }
 
+    /**
+     * Creates the runtime of a mapped model and caches it
+     * 
+     * @param modelHash hash of the model
+     * @return the cached runtime of the model. Null if the model file could not be
+     *         written.
+     * @throws OrtException
+     */
+    private static ONNXRuntime createRuntime(ByteBuffer modelHash) throws OrtException {
+        try {
+            // sessions read the model file, new models may still be written
+            ConnectionPool.modelCache.persisted(modelHash).join();
+        } catch (CompletionException e) {
+            return null;
+        }
+        return ConnectionPool.modelCache.putONNXRuntime(modelHash,
+                new ONNXRuntime(ConnectionPool.modelCache.modelFile(modelHash),
+                        ConnectionPool.modelCache.optimizedModelFile(modelHash)));
     }
 
 }
@@ -0,0 +1,206 @@
+package com.simedge.protocols;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.simedge.protocols.PeerMessage.ResultEncoding;
+
+/**
+ * Converts float results into the compact result encodings and back. A result
+ * of a single byte is an error code in every encoding.
+ * 
+ * FP16 stores every value as IEEE half precision float, INT8 stores the offset
+ * and scale of the result followed by one unsigned byte per value. Both are
+ * big endian. RAW results keep the byte order of the provider, which is little
+ * endian on all platforms SimEdge runs on.
+ */
+public class ResultCodec {
+
+    static final int INT8_HEADER = 8;
+    // largest finite half precision value
+    static final float FP16_MAX = 65504f;
+
+    /**
+     * Checks if a float result can be encoded without losing it completely. INT8
+     * needs finite values whose range fits a float, since one infinite or NaN
+     * value would turn the scale of all values into NaN. FP16 needs finite values
+     * within the half precision range, larger ones would become infinity.
+     * 
+     * @param result   float values in native byte order
+     * @param encoding encoding to check
+     * @return true if the result can be encoded
+     */
+    public static boolean canEncode(ByteBuffer result, ResultEncoding encoding) {
+        FloatBuffer values = result.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        if (encoding == ResultEncoding.FP16) {
+            for (int i = 0; i < values.remaining(); i++) {
+                // infinity and NaN are kept by FP16
+                if (Float.isFinite(values.get(i)) && Math.abs(values.get(i)) > FP16_MAX) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (encoding != ResultEncoding.INT8) {
+            return true;
+        }
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < values.remaining(); i++) {
+            float value = values.get(i);
+            if (!Float.isFinite(value)) {
+                return false;
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return values.remaining() == 0 || Float.isFinite(max - min);
+    }
+
+    /**
+     * Encodes a float result
+     * 
+     * @param result   float values in native byte order
+     * @param encoding encoding to use. INT8 requires a result that
+     *                 {@link #canEncode(ByteBuffer, ResultEncoding)} accepts.
+     * @return encoded result
+     * @throws IllegalArgumentException if the result can not be encoded as INT8
+     */
+    public static ByteBuffer encode(ByteBuffer result, ResultEncoding encoding) {
+        FloatBuffer values = result.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        int count = values.remaining();
+        ByteBuffer encoded;
+        switch (encoding) {
+            case FP16:
+                encoded = ByteBuffer.allocate(count * 2);
+                for (int i = 0; i < count; i++) {
+                    encoded.putShort(floatToHalf(values.get(i)));
+                }
+                break;
+            case INT8:
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (int i = 0; i < count; i++) {
+                    min = Math.min(min, values.get(i));
+                    max = Math.max(max, values.get(i));
+                }
+                if (count > 0 && !(Float.isFinite(min) && Float.isFinite(max) && Float.isFinite(max - min))) {
+                    throw new IllegalArgumentException("INT8 encoding needs finite values");
+                }
+                float scale = count == 0 || max <= min ? 0 : (max - min) / 255;
+                encoded = ByteBuffer.allocate(INT8_HEADER + count);
+                encoded.putFloat(count == 0 ? 0 : min);
+                encoded.putFloat(scale);
+                for (int i = 0; i < count; i++) {
+                    encoded.put((byte) (scale == 0 ? 0 : Math.round((values.get(i) - min) / scale)));
+                }
+                break;
+            default:
+                return result.duplicate();
+        }
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Decodes a result back to floats
+     * 
+     * @param result   encoded result
+     * @param encoding encoding of the result
+     * @return float values
+     */
+    public static float[] decode(ByteBuffer result, ResultEncoding encoding) {
+        ByteBuffer encoded = result.duplicate().order(ByteOrder.BIG_ENDIAN);
+        float[] values;
+        switch (encoding) {
+            case FP16:
+                values = new float[encoded.remaining() / 2];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = halfToFloat(encoded.getShort());
+                }
+                return values;
+            case INT8:
+                float offset = encoded.getFloat();
+                float scale = encoded.getFloat();
+                values = new float[encoded.remaining()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = offset + (encoded.get() & 0xff) * scale;
+                }
+                return values;
+            default:
+                values = new float[encoded.remaining() / 4];
+                encoded.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+                return values;
+        }
+    }
+
+    /**
+     * Converts a float to IEEE half precision, rounding to nearest even. Values
+     * out of range become infinity and tiny values become subnormal or zero.
+     * 
+     * @param value float value
+     * @return half precision bits
+     */
+    public static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent == 0xff) {
+            // infinity or NaN, NaN keeps a mantissa bit
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            // subnormal: shift the mantissa with its implicit bit into place
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            // may carry into the exponent, up to infinity
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts IEEE half precision bits to a float
+     * 
+     * @param half half precision bits
+     * @return float value
+     */
+    public static float halfToFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // zero or subnormal
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.simedge.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Adds deflate compression to the transfers of another repository. Uploads
+ * store a compressed copy next to the plain model if compression makes it
+ * smaller, so providers without compression still find the plain model.
+ * Downloads ask for the compressed copy first and fall back to the plain model
+ * if there is no compressed copy. Resumed downloads use the plain model, which
+ * can be read from an offset. Models are always named and hashed by their
+ * uncompressed bytes.
+ */
+public class CompressedModelRepository implements ModelRepository {
+
+    // suffix of the compressed copy of a model
+    static final String SUFFIX = ".deflate";
+
+    private ModelRepository repository;
+
+    /**
+     * Adds compression to a repository
+     *
+     * @param repository repository that stores the files
+     */
+    public CompressedModelRepository(ModelRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public boolean download(String hash, long offset, OutputStream target) throws IOException {
+        if (offset > 0) {
+            // the compressed copy can not be read from an offset of the model
+            return repository.download(hash, offset, target);
+        }
+        Inflater inflater = new Inflater();
+        CountingOutputStream counted = new CountingOutputStream(target);
+        try {
+            // a failed transfer leaves a valid prefix of the model in the target, so
+            // it is resumed from the plain model
+            InflaterOutputStream inflated = new InflaterOutputStream(counted, inflater);
+            if (repository.download(hash + SUFFIX, 0, inflated)) {
+                inflated.finish();
+                if (!inflater.finished()) {
+                    throw new IOException("Compressed model " + hash + " ended early");
+                }
+                return true;
+            }
+        } finally {
+            inflater.end();
+        }
+        if (counted.count > 0) {
+            throw new IOException("Download of compressed model " + hash + " failed after " + counted.count
+                    + " bytes");
+        }
+        // there is no compressed copy
+        return repository.download(hash, 0, target);
+    }
+
+    @Override
+    public boolean upload(String hash, byte[] model) throws IOException {
+        if (!repository.upload(hash, model)) {
+            return false;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(model.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+            stream.write(model);
+        } finally {
+            deflater.end();
+        }
+        if (compressed.size() < model.length) {
+            System.out.println("Compressed model " + hash + " to " + (100 * compressed.size() / model.length) + "%");
+            repository.upload(hash + SUFFIX, compressed.toByteArray());
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        repository.close();
+    }
+
+    /**
+     * Stream that counts the bytes written to the target. Closing it does not
+     * close the target.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream target) {
+            super(target);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
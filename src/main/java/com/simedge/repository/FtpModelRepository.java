@@ -0,0 +1,155 @@
+package com.simedge.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+
+/**
+ * Model repository on an FTP or FTPS server. Logged in connections are kept
+ * in a pool and reused by later transfers, so only the first transfers pay for
+ * the TLS handshake and the login. Every concurrent transfer uses its own
+ * connection.
+ */
+public class FtpModelRepository implements ModelRepository {
+
+    private URI uri;
+    private String user;
+    private String password;
+    private ArrayBlockingQueue<FTPClient> idle = new ArrayBlockingQueue<FTPClient>(CONNECTIONS);
+
+    /**
+     * Creates a repository on a server. Connections are opened on first use.
+     *
+     * @param uri url of the model folder, e.g. ftps://user@host:port/folder. The
+     *            password is taken from simedge.repositoryPassword.
+     */
+    public FtpModelRepository(URI uri) {
+        this.uri = uri;
+        this.user = uri.getUserInfo() != null ? uri.getUserInfo() : "simedge";
+        this.password = System.getProperty("simedge.repositoryPassword", "hte^W9k$DaZ@ep^q3%b1^A9h6g");
+    }
+
+    @Override
+    public boolean download(String hash, long offset, OutputStream target) throws IOException {
+        FTPClient ftpClient = acquire();
+        boolean finished = false;
+        try {
+            // only applies to the next transfer
+            ftpClient.setRestartOffset(offset);
+            finished = ftpClient.retrieveFile(hash, target);
+            System.out.print(ftpClient.getReplyString());
+        } catch (IOException e) {
+            disconnect(ftpClient);
+            throw e;
+        }
+        if (!finished && ftpClient.getReplyCode() != FTPReply.FILE_UNAVAILABLE) {
+            // e.g. 426 or 451 for an aborted transfer. The bytes received so far are
+            // kept to resume from.
+            String reply = ftpClient.getReplyString();
+            disconnect(ftpClient);
+            throw new IOException("Download of " + hash + " failed: " + reply.trim());
+        }
+        release(ftpClient);
+        // 550: the repository does not have the file
+        return finished;
+    }
+
+    @Override
+    public boolean upload(String hash, byte[] model) throws IOException {
+        FTPClient ftpClient = acquire();
+        boolean finished = false;
+        try (var stream = new ByteArrayInputStream(model)) {
+            finished = ftpClient.storeFile(hash, stream);
+            System.out.print(ftpClient.getReplyString());
+        } catch (IOException e) {
+            disconnect(ftpClient);
+            throw e;
+        }
+        release(ftpClient);
+        return finished;
+    }
+
+    @Override
+    public void close() {
+        FTPClient ftpClient;
+        while ((ftpClient = idle.poll()) != null) {
+            disconnect(ftpClient);
+        }
+    }
+
+    /**
+     * Takes an idle connection that is still alive or opens a new one
+     *
+     * @return logged in connection in the model folder
+     * @throws IOException if the server could not be reached
+     */
+    private FTPClient acquire() throws IOException {
+        FTPClient ftpClient;
+        while ((ftpClient = idle.poll()) != null) {
+            try {
+                // the server may have closed the connection while it was idle
+                if (ftpClient.sendNoOp()) {
+                    return ftpClient;
+                }
+            } catch (IOException e) {
+                // open a new one
+            }
+            disconnect(ftpClient);
+        }
+        return connect();
+    }
+
+    /**
+     * Returns a connection to the pool. Closes it if the pool is full.
+     *
+     * @param ftpClient connection taken with {@link #acquire()}
+     */
+    private void release(FTPClient ftpClient) {
+        if (!idle.offer(ftpClient)) {
+            disconnect(ftpClient);
+        }
+    }
+
+    /**
+     * Opens and logs in a connection
+     *
+     * @return logged in connection in the model folder
+     * @throws IOException if the server could not be reached or the login failed
+     */
+    private FTPClient connect() throws IOException {
+        FTPClient ftpClient = uri.getScheme().equalsIgnoreCase("ftps") ? new FTPSClient() : new FTPClient();
+        ftpClient.connect(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 21);
+        ftpClient.enterLocalPassiveMode();
+        if (!ftpClient.login(user, password)) {
+            disconnect(ftpClient);
+            throw new IOException("Login to model repository failed: " + ftpClient.getReplyString());
+        }
+        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        String folder = uri.getPath();
+        if (folder != null && folder.length() > 1) {
+            ftpClient.changeWorkingDirectory(folder.substring(1));
+        }
+        return ftpClient;
+    }
+
+    /**
+     * Closes a connection and ignores errors
+     *
+     * @param ftpClient connection to close
+     */
+    private static void disconnect(FTPClient ftpClient) {
+        try {
+            ftpClient.disconnect();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+}
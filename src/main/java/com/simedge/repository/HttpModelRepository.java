@@ -0,0 +1,94 @@
+package com.simedge.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+/**
+ * Model repository on a plain HTTP server, e.g. a static file server or an
+ * object store. Models are downloaded with GET and uploaded with PUT to
+ * &lt;url&gt;/&lt;hash&gt;. Interrupted downloads are resumed with a range
+ * request. The HTTP client keeps its connections open between transfers.
+ */
+public class HttpModelRepository implements ModelRepository {
+
+    private String base;
+    private HttpClient client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+
+    /**
+     * Creates a repository on a server
+     *
+     * @param uri url of the model folder
+     */
+    public HttpModelRepository(URI uri) {
+        this.base = uri.toString().endsWith("/") ? uri.toString() : uri.toString() + "/";
+    }
+
+    @Override
+    public boolean download(String hash, long offset, OutputStream target) throws IOException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + hash));
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        HttpResponse<InputStream> response = send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            switch (response.statusCode()) {
+                case 200:
+                    // servers without range support send the whole model
+                    long skipped = 0;
+                    while (skipped < offset) {
+                        long skip = body.skip(offset - skipped);
+                        if (skip <= 0) {
+                            throw new IOException("Model " + hash + " is shorter than the resumed download");
+                        }
+                        skipped += skip;
+                    }
+                    body.transferTo(target);
+                    return true;
+                case 206:
+                    body.transferTo(target);
+                    return true;
+                case 416:
+                    // the target has all bytes already
+                    return true;
+                case 404:
+                    return false;
+                default:
+                    throw new IOException("Download of " + hash + " failed: " + response.statusCode());
+            }
+        }
+    }
+
+    @Override
+    public boolean upload(String hash, byte[] model) throws IOException {
+        HttpResponse<Void> response = send(HttpRequest.newBuilder(URI.create(base + hash))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(model)).build(), HttpResponse.BodyHandlers.discarding());
+        return response.statusCode() / 100 == 2;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Sends a request and waits for the response
+     *
+     * @param request request to send
+     * @param handler handler of the response body
+     * @return response
+     * @throws IOException if the request failed
+     */
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return client.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during transfer of " + request.uri(), e);
+        }
+    }
+
+}
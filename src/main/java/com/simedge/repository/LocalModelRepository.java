@@ -0,0 +1,62 @@
+package com.simedge.repository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Model repository in a local or mounted folder, e.g. as a stand-in for the
+ * remote repository in tests or for providers that share a network drive.
+ * Models are stored as files named by their hash.
+ */
+public class LocalModelRepository implements ModelRepository {
+
+    private Path directory;
+
+    /**
+     * Creates a repository in a folder. Creates the folder if it is missing.
+     *
+     * @param directory folder of the models
+     */
+    public LocalModelRepository(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.err.println("Could not create model repository " + directory);
+        }
+    }
+
+    @Override
+    public boolean download(String hash, long offset, OutputStream target) throws IOException {
+        Path model = directory.resolve(hash);
+        if (!Files.exists(model)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(model, StandardOpenOption.READ)) {
+            channel.position(offset);
+            Channels.newInputStream(channel).transferTo(target);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean upload(String hash, byte[] model) throws IOException {
+        Path file = directory.resolve(hash);
+        // written to a temporary file first so no download sees a partial model
+        Path temporary = directory.resolve(hash + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(temporary, model);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
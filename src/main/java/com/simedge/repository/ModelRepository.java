@@ -0,0 +1,92 @@
+package com.simedge.repository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+
+/**
+ * Remote store the models are distributed through. Clients upload a model once
+ * and providers download it by its hash. Downloads are streamed in order, so
+ * they can be hashed while they are received. Implementations reuse their
+ * connections and are safe to use from several threads, so transfers of
+ * different models run in parallel.
+ */
+public interface ModelRepository extends AutoCloseable {
+
+    // repository of the SimEdge deployment
+    static final String DEFAULT = "ftps://simedge@134.155.108.108:2021/modelCache";
+    // deflate or none
+    static final String COMPRESSION = System.getProperty("simedge.repositoryCompression", "deflate");
+    // max number of connections kept open
+    static final int CONNECTIONS = Integer.parseInt(System.getProperty("simedge.repositoryConnections", "4"));
+
+    /**
+     * Streams a model from an offset on. Used to resume an interrupted download.
+     *
+     * @param hash   hex hash of the model
+     * @param offset number of bytes the target already has
+     * @param target stream the bytes from the offset on are written to
+     * @return true if the model was downloaded. False if the repository does not
+     *         have the model.
+     * @throws IOException if the transfer failed. The bytes written so far are
+     *                     valid and the download can be resumed from there.
+     */
+    boolean download(String hash, long offset, OutputStream target) throws IOException;
+
+    /**
+     * Uploads a model
+     *
+     * @param hash  hex hash of the model
+     * @param model model bytes
+     * @return true if the model was stored
+     * @throws IOException if the transfer failed
+     */
+    boolean upload(String hash, byte[] model) throws IOException;
+
+    /**
+     * Closes the connections of the repository
+     */
+    @Override
+    void close();
+
+    /**
+     * Creates the repository for a location. Supported are ftp and ftps urls, e.g.
+     * ftps://user@host:port/folder, http and https urls of a folder and file urls
+     * or plain paths of a local folder. Transfers are compressed unless
+     * simedge.repositoryCompression is none.
+     *
+     * @param location location of the repository
+     * @return repository
+     */
+    static ModelRepository create(String location) {
+        ModelRepository repository = backend(location);
+        return COMPRESSION.equalsIgnoreCase("none") ? repository : new CompressedModelRepository(repository);
+    }
+
+    /**
+     * Creates the backend of a location without compression
+     *
+     * @param location location of the repository
+     * @return repository
+     */
+    private static ModelRepository backend(String location) {
+        if (!location.contains("://") && !location.startsWith("file:")) {
+            return new LocalModelRepository(Path.of(location));
+        }
+        URI uri = URI.create(location);
+        switch (uri.getScheme().toLowerCase()) {
+            case "ftp":
+            case "ftps":
+                return new FtpModelRepository(uri);
+            case "http":
+            case "https":
+                return new HttpModelRepository(uri);
+            case "file":
+                return new LocalModelRepository(Path.of(uri));
+            default:
+                throw new IllegalArgumentException("Unknown model repository " + location);
+        }
+    }
+
+}
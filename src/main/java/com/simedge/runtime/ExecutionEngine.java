@@ -0,0 +1,216 @@
+package com.simedge.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.drasyl.identity.DrasylAddress;
+
+import com.simedge.peer.ConnectionPool;
+import com.simedge.protocols.PeerMessage;
+import com.simedge.protocols.PeerProtocol;
+import com.simedge.runtime.ONNX.SessionPool;
+
+/**
+ * Provider side execution engine. Runs EXECUTE messages on a fixed number of
+ * worker threads so the drasyl event thread is never blocked by model
+ * downloads, model loading or inference. Messages are gathered into batches by the {@link MicroBatcher}
+ * first. Batches that do not fit into the bounded queue are rejected and the
+ * clients are notified with a REJECTED message.
+ */
+public class ExecutionEngine {
+
+    // queued batches per resource
+    static final int QUEUE_FACTOR = 4;
+
+    // execute messages that may wait for the download of the same model
+    static final int MAX_PARKED = Integer.parseInt(System.getProperty("simedge.maxParked", "64"));
+
+    private ThreadPoolExecutor workers;
+    private ConcurrentHashMap<ByteBuffer, Integer> parked = new ConcurrentHashMap<ByteBuffer, Integer>();
+    private MicroBatcher batcher = new MicroBatcher(this);
+
+    /**
+     * Creates the execution engine
+     *
+     * @param resources Number of resources the local device supplies. One worker
+     *                  thread is started per resource and each model gets up to
+     *                  one session per worker.
+     */
+    public ExecutionEngine(int resources) {
+        SessionPool.configure(resources);
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(resources, resources, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(resources * QUEUE_FACTOR), runnable -> {
+                    Thread thread = new Thread(runnable, "simedge-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues an execute message for execution. If the model is not availible yet
+     * the message waits for its download without blocking the caller. Messages
+     * that wait too long or exceed the limit of waiting messages per model are
+     * rejected.
+     *
+     * @param peerMessage Execute or execute batch message
+     * @param source      Sender of the message
+     */
+    public void submit(PeerMessage peerMessage, DrasylAddress source) {
+        QueuedMessage message = new QueuedMessage(peerMessage, source, System.currentTimeMillis());
+        CompletableFuture<ByteBuffer> download = ConnectionPool.modelCache.loadAsync(peerMessage.getModelHash());
+        // runs right away if the model is availible
+        if (download.isDone()) {
+            download.whenComplete((model, error) -> modelLoaded(message, model, error));
+            return;
+        }
+
+        // otherwise the message is parked until the download finished. Parked
+        // messages are limited per model and each waits at most until its client
+        // gives up
+        ByteBuffer modelHash = peerMessage.getModelHash();
+        if (parked.merge(modelHash, 1, Integer::sum) > MAX_PARKED) {
+            unpark(modelHash);
+            reject(message, "Too many messages waiting for model.");
+            return;
+        }
+        // copy so the timeout does not complete the download shared by all messages
+        download.copy().orTimeout(Math.max(message.remaining(), 0), TimeUnit.MILLISECONDS).whenComplete((model, error) -> {
+            unpark(modelHash);
+            modelLoaded(message, model, error);
+        });
+    }
+
+    /**
+     * Queues a message once the download of its model finished or rejects it if
+     * the model is not availible in time
+     *
+     * @param message Queued execute or execute batch message
+     * @param model   Model or null if the model is not availible
+     * @param error   Error of the download or null
+     */
+    private void modelLoaded(QueuedMessage message, ByteBuffer model, Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (error instanceof TimeoutException) {
+            reject(message, "Model download timed out.");
+        } else if (error != null || model == null) {
+            reject(message, "Model not availible.");
+        } else if (message.expired()) {
+            reject(message, "Message expired.");
+        } else {
+            enqueue(message);
+        }
+    }
+
+    /**
+     * Releases the parking slot of a message
+     *
+     * @param modelHash Hash of the model the message waited for
+     */
+    private void unpark(ByteBuffer modelHash) {
+        parked.computeIfPresent(modelHash, (hash, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Notifies the sender that a message will not be executed
+     *
+     * @param message Queued execute or execute batch message
+     * @param reason  Reason printed to the log
+     */
+    private void reject(QueuedMessage message, String reason) {
+        System.out.println(reason + " Rejecting message: " + message.peerMessage.messageNumber);
+        ConnectionPool.node.sendResultMessage(message.source.toString(),
+                new PeerMessage(PeerMessage.MessageType.REJECTED, message.peerMessage.messageNumber));
+    }
+
+    /**
+     * Queues a message whose model is availible. Execute batch messages already
+     * form a batch and messages with several inputs run alone, both skip the
+     * batcher.
+     *
+     * @param message Queued execute or execute batch message
+     */
+    private void enqueue(QueuedMessage message) {
+        if (message.peerMessage.messageType == PeerMessage.MessageType.EXECUTE_BATCH
+                || !message.peerMessage.getExtraInputs().isEmpty()) {
+            List<QueuedMessage> batch = new ArrayList<QueuedMessage>();
+            batch.add(message);
+            dispatch(batch);
+        } else {
+            batcher.add(message);
+        }
+    }
+
+    /**
+     * Queues a batch of execute messages for one worker. If the queue is full
+     * all messages of the batch are rejected and the senders are notified.
+     *
+     * @param batch Messages for the same model and input
+     * @return true if the batch was queued
+     */
+    boolean dispatch(List<QueuedMessage> batch) {
+        try {
+            workers.execute(() -> {
+                // client already gave up on messages while they were queued
+                batch.removeIf(message -> {
+                    if (message.expired()) {
+                        reject(message, "Message expired.");
+                        return true;
+                    }
+                    return false;
+                });
+
+                if (batch.size() == 1) {
+                    PeerProtocol.execute(batch.get(0));
+                } else if (batch.size() > 1) {
+                    PeerProtocol.executeBatch(batch);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            for (var message : batch) {
+                reject(message, "Execution queue full.");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a worker is waiting for work
+     *
+     * @return true if a worker is idle and nothing is queued
+     */
+    boolean idle() {
+        return workers.getActiveCount() < workers.getCorePoolSize() && workers.getQueue().isEmpty();
+    }
+
+    /**
+     * Number of messages waiting for a free worker
+     *
+     * @return queue length
+     */
+    public int queueLength() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Stops accepting messages and lets the workers finish queued messages
+     */
+    public void shutdown() {
+        batcher.shutdown();
+        workers.shutdown();
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.simedge.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.simedge.protocols.PeerMessage;
+
+/**
+ * Gathers execute messages for the same model and input into batches. A batch
+ * is handed to the execution engine when it is full, when its delay has passed
+ * or right away when a worker is idle, so batching only adds latency while the
+ * provider is busy anyway.
+ */
+public class MicroBatcher {
+
+    static final int MAX_BATCH_SIZE = Integer.parseInt(System.getProperty("simedge.batchSize", "16"));
+    static final long MAX_BATCH_DELAY = Long.parseLong(System.getProperty("simedge.batchDelay", "2"));
+
+    private ExecutionEngine engine;
+    private HashMap<BatchKey, List<QueuedMessage>> batches = new HashMap<BatchKey, List<QueuedMessage>>();
+    private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "simedge-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a batcher for an execution engine
+     *
+     * @param engine Engine the batches are dispatched to
+     */
+    public MicroBatcher(ExecutionEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Adds a message to the batch of its model
+     *
+     * @param message Queued execute message
+     */
+    public synchronized void add(QueuedMessage message) {
+        BatchKey key = new BatchKey(message.peerMessage);
+        List<QueuedMessage> batch = batches.get(key);
+        if (batch == null) {
+            batch = new ArrayList<QueuedMessage>();
+            batches.put(key, batch);
+            // always scheduled, since workers can become busy or idle at any time.
+            // Batches that were dispatched before are ignored by flush.
+            final List<QueuedMessage> delayed = batch;
+            timer.schedule(() -> flush(key, delayed), MAX_BATCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+        batch.add(message);
+
+        if (batch.size() >= MAX_BATCH_SIZE || engine.idle()) {
+            flush(key, batch);
+        }
+    }
+
+    /**
+     * Dispatches a batch if it is still waiting
+     *
+     * @param key   Key of the batch
+     * @param batch Batch to dispatch
+     */
+    private synchronized void flush(BatchKey key, List<QueuedMessage> batch) {
+        if (batches.get(key) == batch) {
+            batches.remove(key);
+            engine.dispatch(batch);
+        }
+    }
+
+    /**
+     * Stops the batch timer
+     */
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    /**
+     * Messages can share a batch if they run the same model and input with rows
+     * of the same size and shape and request the same outputs. The reduction is
+     * applied per message.
+     */
+    private static class BatchKey {
+        private ByteBuffer modelHash;
+        private String inputName;
+        private PeerMessage.DataType dataType;
+        private int rowLength;
+        private long[] shape;
+        private List<String> outputNames;
+
+        BatchKey(PeerMessage peerMessage) {
+            this.modelHash = peerMessage.getModelHash();
+            this.inputName = peerMessage.getInputName();
+            this.dataType = peerMessage.getDataType();
+            this.rowLength = peerMessage.getData().remaining();
+            this.shape = peerMessage.getShape();
+            this.outputNames = peerMessage.getOutputNames();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) o;
+            return modelHash.equals(other.modelHash) && inputName.equals(other.inputName)
+                    && dataType == other.dataType && rowLength == other.rowLength
+                    && Arrays.equals(shape, other.shape) && outputNames.equals(other.outputNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(modelHash, inputName, dataType, rowLength, Arrays.hashCode(shape), outputNames);
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.simedge.runtime.ONNX;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed plan for reducing a result to the elements at a set of indicies.
+ * Consecutive indicies are merged into runs, so gathering copies whole runs of
+ * elements instead of single bytes and allocates nothing. Plans are shared
+ * between all requests that use the same indicies.
+ */
+public class GatherPlan {
+
+    // max number of distinct plans kept in the plan cache
+    private static final int MAX_PLANS = 1024;
+    private static ConcurrentHashMap<PlanKey, GatherPlan> plans = new ConcurrentHashMap<PlanKey, GatherPlan>();
+
+    // whole element access to byte arrays. Reading and writing in the same order
+    // keeps the bytes unchanged.
+    private static final VarHandle INT_ACCESS = MethodHandles.byteArrayViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle LONG_ACCESS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private int[] indices;
+    private int elementSize;
+    // first element and number of elements of each run of consecutive indicies
+    private int[] runStarts;
+    private int[] runLengths;
+    private int minIndex = 0;
+    private int maxIndex = -1;
+
+    /**
+     * Get the cached plan for a set of indicies and an element size. Creates and
+     * caches the plan on first use.
+     *
+     * @param indices     indicies of the elements to gather in output order
+     * @param elementSize number of bytes of one element
+     * @return shared gather plan
+     */
+    public static GatherPlan of(IntBuffer indices, int elementSize) {
+        GatherPlan plan = plans.get(new PlanKey(indices, elementSize));
+        if (plan == null) {
+            // the key needs its own copy of the indicies instead of a view into a packet
+            int[] copy = new int[indices.remaining()];
+            indices.duplicate().get(copy);
+            plan = new GatherPlan(copy, elementSize);
+            if (plans.size() >= MAX_PLANS) {
+                plans.clear();
+            }
+            plans.put(new PlanKey(IntBuffer.wrap(copy), elementSize), plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Create a gather plan
+     *
+     * @param indices     indicies of the elements to gather in output order
+     * @param elementSize number of bytes of one element
+     */
+    public GatherPlan(int[] indices, int elementSize) {
+        this.indices = indices.clone();
+        this.elementSize = elementSize;
+
+        int runs = 0;
+        int[] starts = new int[indices.length];
+        int[] lengths = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            if (runs > 0 && starts[runs - 1] + lengths[runs - 1] == indices[i]) {
+                lengths[runs - 1]++;
+            } else {
+                starts[runs] = indices[i];
+                lengths[runs] = 1;
+                runs++;
+            }
+            minIndex = Math.min(minIndex, indices[i]);
+            maxIndex = Math.max(maxIndex, indices[i]);
+        }
+        runStarts = Arrays.copyOf(starts, runs);
+        runLengths = Arrays.copyOf(lengths, runs);
+    }
+
+    /**
+     * Number of bytes the gathered elements of one result take
+     *
+     * @return output size in bytes
+     */
+    public int outputSize() {
+        return indices.length * elementSize;
+    }
+
+    /**
+     * Number of bytes of one element
+     *
+     * @return element size in bytes
+     */
+    public int elementSize() {
+        return elementSize;
+    }
+
+    /**
+     * Gathers the elements of the plan from a result into the target buffer. The
+     * bytes of each element are copied unchanged.
+     *
+     * @param source result of a model run
+     * @param offset byte offset of the result in the source, e.g. of a row
+     * @param length number of bytes of the result
+     * @param target buffer the elements are written to at its position
+     * @throws IndexOutOfBoundsException if an index is negative or outside of the
+     *                                   result
+     */
+    public void gather(ByteBuffer source, int offset, int length, ByteBuffer target)
+            throws IndexOutOfBoundsException {
+        // a negative index would read the previous row of a batch
+        if (minIndex < 0 || (maxIndex + 1L) * elementSize > length || offset + length > source.limit()) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (target.remaining() < outputSize()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int position = target.position();
+        if (source.hasArray() && target.hasArray()) {
+            byte[] sourceArray = source.array();
+            byte[] targetArray = target.array();
+            int sourceOffset = source.arrayOffset() + offset;
+            int targetOffset = target.arrayOffset() + position;
+            for (int run = 0; run < runStarts.length; run++) {
+                int runBytes = runLengths[run] * elementSize;
+                int from = sourceOffset + runStarts[run] * elementSize;
+                if (runLengths[run] == 1 && elementSize == 4) {
+                    // a single 4 byte access beats the call overhead of arraycopy
+                    INT_ACCESS.set(targetArray, targetOffset, (int) INT_ACCESS.get(sourceArray, from));
+                } else if (runLengths[run] == 1 && elementSize == 8) {
+                    LONG_ACCESS.set(targetArray, targetOffset, (long) LONG_ACCESS.get(sourceArray, from));
+                } else {
+                    System.arraycopy(sourceArray, from, targetArray, targetOffset, runBytes);
+                }
+                targetOffset += runBytes;
+            }
+        } else {
+            // direct buffers: copy whole elements with absolute typed access in the
+            // byte order of the source so the bytes stay unchanged
+            var targetOrder = target.order();
+            target.order(source.order());
+            int to = position;
+            for (int index : indices) {
+                int from = offset + index * elementSize;
+                switch (elementSize) {
+                    case 8:
+                        target.putLong(to, source.getLong(from));
+                        break;
+                    case 4:
+                        target.putInt(to, source.getInt(from));
+                        break;
+                    case 2:
+                        target.putShort(to, source.getShort(from));
+                        break;
+                    default:
+                        for (int i = 0; i < elementSize; i++) {
+                            target.put(to + i, source.get(from + i));
+                        }
+                        break;
+                }
+                to += elementSize;
+            }
+            target.order(targetOrder);
+        }
+        target.position(position + outputSize());
+    }
+
+    /**
+     * Key of the plan cache. Indicies are compared by content.
+     */
+    private static class PlanKey {
+        private IntBuffer indices;
+        private int elementSize;
+
+        PlanKey(IntBuffer indices, int elementSize) {
+            this.indices = indices;
+            this.elementSize = elementSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PlanKey)) {
+                return false;
+            }
+            PlanKey other = (PlanKey) o;
+            return elementSize == other.elementSize && indices.equals(other.indices);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(indices, elementSize);
+        }
+    }
+
+}
@@ -3,15 +3,24 @@ package com.simedge.runtime.ONNX;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
 import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.TensorInfo;
 
 /**
  * Onnx Runtime environment
@@ -40,101 +49,355 @@ public class ONNXRuntime {
     }
 
     public OrtEnvironment env = OrtEnvironment.getEnvironment();
-    private OrtSession session;
-    private int[] indicies;
-    private int dataTypeSize;
-
-    /**
-     * Initalize ONNX runtime
-     * 
-     * @param model        Bytes of the ML ONNX model. Using>
-     *                     FileUtils.readFileToByteArray(new File(String Path)),
-     * @param indicies     Reduction indicies. From each results only those will be
-     *                     returned which position is specified in this indicies
-     *                     array. By only returing parts of each model network speed
-     *                     can be improved. These results can be interpolated
-     *                     afterwards using statistical models. NULL = dont use
-     *                     (Return the full results as bytes)
-     * @param dataTypeSize The number of bytes for one entry of the used result data
-     *                     type
+    private SessionPool sessions;
+    // time of the last execution in ms
+    private volatile long lastUsed = System.currentTimeMillis();
+    // output names in model order, the order of the results if all outputs are
+    // requested
+    private List<String> outputNames;
+    // number of bytes of one element of each output
+    private Map<String, Integer> outputElementSizes = new HashMap<String, Integer>();
+    // outputs that are float tensors, so their results can be encoded compactly
+    private Set<String> floatOutputs = new HashSet<String>();
+    // reusable buffer for reduced results per worker thread
+    private static ThreadLocal<ByteBuffer> outputBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(0));
+    // inputs with a dynamic first dimension that accept batches of rows
+    private Set<String> batchableInputs = new HashSet<String>();
+
+    /**
+     * Initalize ONNX runtime without saving the optimized model
+     * 
+     * @param model File of the ML ONNX model
+     * @throws OrtException
+     */
+    public ONNXRuntime(Path model) throws OrtException {
+        this(model, null);
+    }
+
+    /**
+     * Initalize ONNX runtime. The runtime does not depend on the reduction of a
+     * request, so one runtime serves all requests for the model. The sessions
+     * read the model file themselves, so the model bytes are never copied to the
+     * Java heap.
+     * 
+     * @param model          File of the ML ONNX model
+     * @param optimizedModel File the optimized model is saved to and loaded from
+     *                       to skip graph optimization on later starts. NULL =
+     *                       dont use
      * @throws OrtException
      */
-    public ONNXRuntime(byte[] model, int[] indicies, int dataTypeSize) throws OrtException {
-        var sessionOptions = new OrtSession.SessionOptions();
-        session = env.createSession(model, sessionOptions);
-        this.indicies = indicies;
-        this.dataTypeSize = dataTypeSize;
+    public ONNXRuntime(Path model, Path optimizedModel) throws OrtException {
+        sessions = new SessionPool(env, model, optimizedModel);
+
+        OrtSession session = sessions.acquire();
+        try {
+            for (var input : session.getInputInfo().entrySet()) {
+                if (input.getValue().getInfo() instanceof TensorInfo) {
+                    long[] shape = ((TensorInfo) input.getValue().getInfo()).getShape();
+                    if (shape.length >= 2 && shape[0] == -1) {
+                        batchableInputs.add(input.getKey());
+                    }
+                }
+            }
+
+            // reductions index elements of the outputs, so the element size comes from
+            // the output type and not from the data type of the request
+            var outputInfo = session.getOutputInfo();
+            outputNames = List.copyOf(outputInfo.keySet());
+            for (var output : outputInfo.entrySet()) {
+                int elementSize = 1;
+                if (output.getValue().getInfo() instanceof TensorInfo) {
+                    TensorInfo info = (TensorInfo) output.getValue().getInfo();
+                    elementSize = Math.max(info.type.size, 1);
+                    if (info.type == OnnxJavaType.FLOAT) {
+                        floatOutputs.add(output.getKey());
+                    }
+                }
+                outputElementSizes.put(output.getKey(), elementSize);
+            }
+        } finally {
+            sessions.release(session);
+        }
+    }
+
+    /**
+     * Checks if an input of the model accepts batches of rows
+     * 
+     * @param inputName Name of the input
+     * @return true if the input has a dynamic batch dimension
+     */
+    public boolean supportsBatching(String inputName) {
+        return batchableInputs.contains(inputName);
+    }
+
+    /**
+     * Checks if all requested outputs of the model are float tensors
+     * 
+     * @param requested requested output names. Empty = all outputs
+     * @return true if the results consist of floats only
+     */
+    public boolean hasFloatOutputs(List<String> requested) {
+        return floatOutputs.containsAll(requested.isEmpty() ? outputNames : requested);
     }
 
     /**
      * Execute ONNX model using runtime initialization
      * 
      * @param dense_input input that gets used by model to do inference
-     * @return returns a Map of OnnxTensors which have a type and the values.
-     *         Returns null if something went wrong.
-     * @throws OrtException
+     * @param requested   Output names to compute and return in this order. Only
+     *                    the part of the graph they depend on is run. Empty = all
+     *                    outputs in model order
+     * @param indicies    Reduction indicies. From each result only those will be
+     *                    returned which position is specified in this indicies
+     *                    array. By only returing parts of each model network speed
+     *                    can be improved. These results can be interpolated
+     *                    afterwards using statistical models. Empty = dont use
+     *                    (Return the full results as bytes)
+     * @return returns the reduced results of the requested outputs. The buffer is
+     *         reused by the next execution on the same thread.
+     * @throws OrtException if the model has no output of a requested name
      */
-    public ByteBuffer execute(Map<String, OnnxTensor> dense_input)
+    public ByteBuffer execute(Map<String, OnnxTensor> dense_input, List<String> requested, IntBuffer indicies)
             throws OrtException {
 
-        try (Result results = session.run(dense_input)) {
-            Map<String, ByteBuffer> dense_output = new HashMap<String, ByteBuffer>();
+        lastUsed = System.currentTimeMillis();
+        OrtSession session = sessions.acquire();
+        try (Result results = run(session, dense_input, requested)) {
+            return reduceResults(results, requested, new IntBuffer[] { indicies })[0];
+        } finally {
+            sessions.release(session);
+        }
 
-            // put the results in a reusable map of OnnxTensors.
+    }
 
-            for (var result : results) {
-                var outputTensor = (OnnxTensor) result.getValue();
+    /**
+     * Execute ONNX model on a batch of inputs stacked into one [B][n] tensor. Each
+     * row is reduced with its own indicies.
+     * 
+     * @param batch_input input with a batch dimension of the number of rows
+     * @param requested   Output names to compute and return in this order. Empty
+     *                    = all outputs in model order
+     * @param indicies    Reduction indicies of each row. Empty = full results
+     * @return returns the reduced results of each row in order of the rows. The
+     *         buffers are reused by the next execution on the same thread.
+     * @throws OrtException if the model has no output of a requested name
+     */
+    public ByteBuffer[] executeBatch(Map<String, OnnxTensor> batch_input, List<String> requested,
+            IntBuffer[] indicies) throws OrtException {
 
-                dense_output.put(result.getKey(), outputTensor.getByteBuffer());
+        lastUsed = System.currentTimeMillis();
+        OrtSession session = sessions.acquire();
+        try (Result results = run(session, batch_input, requested)) {
+            return reduceResults(results, requested, indicies);
+        } finally {
+            sessions.release(session);
+        }
+    }
 
+    /**
+     * Runs the model once on zero inputs built from the input metadata, so the
+     * first request does not pay for the allocations and kernel setup of a cold
+     * run. Dynamic dimensions are set to 1. Models with non tensor or string
+     * inputs are not warmed up.
+     * 
+     * @return true if the warm-up run was done
+     * @throws OrtException
+     */
+    public boolean warmUp() throws OrtException {
+        Map<String, OnnxTensor> inputs = new HashMap<String, OnnxTensor>();
+        OrtSession session = sessions.acquire();
+        try {
+            for (var input : session.getInputInfo().entrySet()) {
+                if (!(input.getValue().getInfo() instanceof TensorInfo)) {
+                    return false;
+                }
+                TensorInfo info = (TensorInfo) input.getValue().getInfo();
+                if (info.type == OnnxJavaType.STRING || info.type == OnnxJavaType.UNKNOWN) {
+                    return false;
+                }
+                long[] shape = info.getShape().clone();
+                long elements = 1;
+                for (int i = 0; i < shape.length; i++) {
+                    shape[i] = Math.max(shape[i], 1);
+                    elements *= shape[i];
+                }
+                ByteBuffer zeros = ByteBuffer.allocateDirect((int) (elements * info.type.size))
+                        .order(ByteOrder.nativeOrder());
+                inputs.put(input.getKey(), zeroTensor(zeros, shape, info.type));
             }
-
-            return reduceResults(this.indicies, dense_output, this.dataTypeSize);
+            session.run(inputs).close();
+            return true;
+        } finally {
+            for (OnnxTensor tensor : inputs.values()) {
+                tensor.close();
+            }
+            sessions.release(session);
         }
+    }
 
+    /**
+     * Estimated native memory the sessions of the runtime take
+     * 
+     * @return memory in bytes
+     */
+    public long memory() {
+        return sessions.memory();
     }
 
-    // utils
+    /**
+     * Sets the listener that is called when the runtime created another session
+     * and takes more memory
+     * 
+     * @param listener listener, e.g. to update memory accounting
+     */
+    public void onResize(Runnable listener) {
+        sessions.onResize(listener);
+    }
 
     /**
-     * Util method to reduce result with indicies
+     * Time since the last execution
      * 
-     * @param indicies     Indicies which defines subresult to be return
-     * @param results      Reults of ONNX execution
-     * @param dataTypeSize Data type size for extracting from byte buffer
-     * @return Returns byte buffer of reduced results
+     * @return idle time in ms
      */
-    private static ByteBuffer reduceResults(int[] indicies, Map<String, ByteBuffer> results, int dataTypeSize) {
+    public long idleTime() {
+        return System.currentTimeMillis() - lastUsed;
+    }
 
-        if (indicies != null) {
+    /**
+     * Closes the sessions of the model. Runs that are in progress finish first.
+     */
+    public void close() {
+        sessions.close();
+    }
+
+    // utils
+
+    /**
+     * Util method to run the model for the requested outputs. Runs the whole
+     * graph if all outputs are requested.
+     * 
+     * @param session   session to run
+     * @param inputs    inputs of the model
+     * @param requested requested output names. Empty = all outputs
+     * @return results of the requested outputs
+     * @throws OrtException if the model has no output of a requested name
+     */
+    private Result run(OrtSession session, Map<String, OnnxTensor> inputs, List<String> requested)
+            throws OrtException {
+        if (requested.isEmpty()) {
+            return session.run(inputs);
+        }
+        return session.run(inputs, new LinkedHashSet<String>(requested));
+    }
 
-            // reduce by indice
-            ByteBuffer output = ByteBuffer.allocate(results.size() * indicies.length * dataTypeSize);
+    /**
+     * Util method to reduce the outputs of a model run row by row. Each row of
+     * every output is reduced with the cached gather plan of the row indicies and
+     * the outputs of a row are concatenated in the requested order. All rows are
+     * written into the reusable output buffer of the calling thread.
+     * 
+     * This is not free of allocations: in ONNX Runtime 1.13
+     * OnnxTensor.getByteBuffer copies every output into a new heap buffer on each
+     * run, since the direct view of the native output is not public. Only the
+     * reduced results avoid further allocations.
+     * 
+     * @param results   Results of ONNX execution
+     * @param requested requested output names. Empty = all outputs in model order
+     * @param indicies  Reduction indicies of each row. Empty returns the full
+     *                  results.
+     * @return Returns a view of the reduced result of each row. Rows with indicies
+     *         outside of the results get the out of bounds error.
+     */
+    private ByteBuffer[] reduceResults(Result results, List<String> requested, IntBuffer[] indicies) {
+        int rows = indicies.length;
+        List<String> names = requested.isEmpty() ? outputNames : requested;
+        ByteBuffer[] outputs = new ByteBuffer[names.size()];
+        int[] elementSizes = new int[names.size()];
+        for (int i = 0; i < outputs.length; i++) {
+            // looked up by name, the order of the results is not guaranteed
+            outputs[i] = ((OnnxTensor) results.get(names.get(i)).get()).getByteBuffer();
+            elementSizes[i] = outputElementSizes.get(names.get(i));
+        }
 
-            for (var result : results.entrySet()) {
-                try {
-                    output.put(reduceOneResults(indicies, result.getValue(), dataTypeSize));
-                } catch (IndexOutOfBoundsException e) {
-                    output = ByteBuffer.allocate(1);
-                    output.put(ONNXRuntime.Error.OUTOFBOUNDS.message);
+        GatherPlan[][] plans = new GatherPlan[rows][outputs.length];
+        int size = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int output = 0; output < outputs.length; output++) {
+                if (indicies[row].hasRemaining()) {
+                    plans[row][output] = GatherPlan.of(indicies[row], elementSizes[output]);
+                    size += plans[row][output].outputSize();
+                } else {
+                    size += outputs[output].limit() / rows;
                 }
             }
-            output.position(0);
-
-            return output;
-        } else {
-            // no indice specified so return results as bytes
-            int size = 0;
-            for (var result : results.entrySet()) {
-                size += result.getValue().limit();
-            }
-            ByteBuffer output = ByteBuffer.allocate(size);
-            for (var result : results.entrySet()) {
-                output.put(result.getValue());
+        }
+
+        ByteBuffer target = outputBuffer(size);
+        ByteBuffer[] reduced = new ByteBuffer[rows];
+        for (int row = 0; row < rows; row++) {
+            int rowStart = target.position();
+            try {
+                for (int output = 0; output < outputs.length; output++) {
+                    int rowBytes = outputs[output].limit() / rows;
+                    if (plans[row][output] != null) {
+                        plans[row][output].gather(outputs[output], row * rowBytes, rowBytes, target);
+                    } else {
+                        System.arraycopy(outputs[output].array(), outputs[output].arrayOffset() + row * rowBytes,
+                                target.array(), target.arrayOffset() + target.position(), rowBytes);
+                        target.position(target.position() + rowBytes);
+                    }
+                }
+                reduced[row] = target.duplicate().position(rowStart).limit(target.position()).slice();
+            } catch (IndexOutOfBoundsException e) {
+                target.position(rowStart);
+                reduced[row] = ByteBuffer.wrap(new byte[] { ONNXRuntime.Error.OUTOFBOUNDS.message });
             }
-            output.position(0);
-            return output;
         }
+        return reduced;
+    }
+
+    /**
+     * Util method to create a tensor of zeros for the warm-up run
+     * 
+     * @param zeros direct buffer of zeros with the size of the tensor
+     * @param shape shape of the tensor
+     * @param type  element type of the tensor
+     * @return tensor that needs to be closed after the run
+     * @throws OrtException
+     */
+    private OnnxTensor zeroTensor(ByteBuffer zeros, long[] shape, OnnxJavaType type) throws OrtException {
+        switch (type) {
+            case FLOAT:
+                return OnnxTensor.createTensor(env, zeros.asFloatBuffer(), shape);
+            case DOUBLE:
+                return OnnxTensor.createTensor(env, zeros.asDoubleBuffer(), shape);
+            case INT64:
+                return OnnxTensor.createTensor(env, zeros.asLongBuffer(), shape);
+            case INT32:
+                return OnnxTensor.createTensor(env, zeros.asIntBuffer(), shape);
+            case INT16:
+                return OnnxTensor.createTensor(env, zeros.asShortBuffer(), shape);
+            default:
+                // one byte types, e.g. int8, uint8 and bool
+                return OnnxTensor.createTensor(env, zeros, shape, type);
+        }
+    }
+
+    /**
+     * Returns the reusable output buffer of the calling thread. Grows the buffer
+     * if it is too small.
+     * 
+     * @param size Number of bytes required
+     * @return cleared output buffer
+     */
+    private static ByteBuffer outputBuffer(int size) {
+        ByteBuffer buffer = outputBuffers.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+            outputBuffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
     }
 
     /**
@@ -0,0 +1,91 @@
+package com.simedge.runtime.ONNX;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Benchmark comparing the byte by byte reduction of
+ * {@link ONNXRuntime#reduceOneResults} with the gather plan reduction on a
+ * result with the size of the moves2coords net output.
+ */
+public class ReductionBenchmark {
+
+    static final int OUTPUT_ELEMENTS = 2620;
+    static final int WARMUP_ITERATIONS = 200000;
+    static final int ITERATIONS = 1000000;
+
+    // indicies used by SimEdgeAPI.main_Execution_Test
+    static final int[] INDICES = new int[] { 15, 52, 339, 434, 570, 730, 868, 938, 976, 1086, 1107,
+            1198, 1230, 1254, 1314, 1361, 1409, 1424, 1452, 1507, 1590, 1660,
+            1742, 2139, 2227, 2487, 2514,
+            2547, 2586, 2619 };
+
+    // prevents the JIT from removing the reductions
+    static long sink = 0;
+
+    public static void main(String[] args) {
+        ByteBuffer result = ByteBuffer.allocate(OUTPUT_ELEMENTS * 4).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < OUTPUT_ELEMENTS; i++) {
+            result.putFloat(i * 0.5f);
+        }
+        result.position(0);
+
+        int[] allIndices = new int[OUTPUT_ELEMENTS];
+        for (int i = 0; i < allIndices.length; i++) {
+            allIndices[i] = i;
+        }
+
+        run("30 indicies", result, INDICES);
+        run("all " + OUTPUT_ELEMENTS + " indicies", result, allIndices);
+    }
+
+    /**
+     * Runs both reductions and prints the time per reduction
+     *
+     * @param name    Name of the case
+     * @param result  Result to reduce
+     * @param indices Reduction indicies
+     */
+    private static void run(String name, ByteBuffer result, int[] indices) {
+        int iterations = ITERATIONS * 30 / indices.length;
+
+        // old: byte by byte into a new buffer per result
+        for (int i = 0; i < WARMUP_ITERATIONS * 30 / indices.length; i++) {
+            sink += ONNXRuntime.reduceOneResults(indices, result, 4).get(0);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += ONNXRuntime.reduceOneResults(indices, result, 4).get(0);
+        }
+        long oldTime = System.nanoTime() - start;
+
+        // new: gather plan into a reused buffer
+        GatherPlan plan = new GatherPlan(indices, 4);
+        ByteBuffer output = ByteBuffer.allocate(plan.outputSize());
+        for (int i = 0; i < WARMUP_ITERATIONS * 30 / indices.length; i++) {
+            output.clear();
+            plan.gather(result, 0, result.limit(), output);
+            sink += output.get(0);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            output.clear();
+            plan.gather(result, 0, result.limit(), output);
+            sink += output.get(0);
+        }
+        long newTime = System.nanoTime() - start;
+
+        // both reductions have to return the same bytes
+        output.clear();
+        plan.gather(result, 0, result.limit(), output);
+        output.position(0);
+        boolean equal = output.equals(ONNXRuntime.reduceOneResults(indices, result, 4));
+
+        System.out.println(name + ":");
+        System.out.println("\treduceOneResults: " + (oldTime / iterations) + " ns/op");
+        System.out.println("\tGatherPlan:       " + (newTime / iterations) + " ns/op");
+        System.out.println("\tSpeedup: " + String.format("%.1f", (double) oldTime / newTime) + "x, equal results: "
+                + equal);
+    }
+
+}
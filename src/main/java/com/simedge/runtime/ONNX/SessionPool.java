@@ -0,0 +1,323 @@
+package com.simedge.runtime.ONNX;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+/**
+ * Pool of sessions for one model. Every worker thread that runs the model takes
+ * its own session, so requests for the same model run concurrently. Sessions
+ * are created on first use up to the pool size. The thread settings of the
+ * sessions are chosen so that all workers together do not use more threads
+ * than the machine has cores.
+ * 
+ * The graph optimizations of the first session are saved to an optimized model
+ * file. All later sessions, also after a restart, load that file and only run
+ * the hardware specific optimizations.
+ */
+public class SessionPool {
+
+    // 0 = one session per worker thread
+    static final int POOL_SIZE = Integer.parseInt(System.getProperty("simedge.sessionPoolSize", "0"));
+    // 0 = split the cores evenly between the worker threads
+    static final int INTRA_OP_THREADS = Integer.parseInt(System.getProperty("simedge.intraOpThreads", "0"));
+    static final int INTER_OP_THREADS = Integer.parseInt(System.getProperty("simedge.interOpThreads", "1"));
+    // estimated native memory of a session as multiple of the model size, e.g. for
+    // the weights and the arenas of the runs
+    static final double SESSION_MEMORY_FACTOR = Double
+            .parseDouble(System.getProperty("simedge.sessionMemoryFactor", "2"));
+    // the measured creation of the first session of a pool takes the write lock,
+    // so no other creation counts into the measurement. All other creations take
+    // the read lock and run concurrently.
+    private static final ReentrantReadWriteLock MEASUREMENT_LOCK = new ReentrantReadWriteLock();
+
+    // number of worker threads that run models concurrently
+    private static int workers = 1;
+
+    private OrtEnvironment env;
+    // model file the sessions are created from
+    private Path model;
+    // optimized model file. NULL = always optimize from the model bytes
+    private Path optimizedModel;
+    private int size;
+    private ArrayBlockingQueue<OrtSession> idle;
+    private AtomicInteger created = new AtomicInteger();
+    private volatile boolean closed = false;
+    // estimated native memory of one session in bytes
+    private long sessionMemory;
+    // called when the pool created another session
+    private volatile Runnable resizeListener;
+
+    /**
+     * Sets the number of worker threads that run models. Used for the default
+     * pool size and thread settings of pools created afterwards.
+     *
+     * @param workerThreads number of worker threads
+     */
+    public static void configure(int workerThreads) {
+        workers = Math.max(1, workerThreads);
+    }
+
+    /**
+     * Creates a session pool and its first session
+     *
+     * @param env            ONNX environment
+     * @param model          File of the ONNX model
+     * @param optimizedModel File of the optimized model. Created if it does not
+     *                       exist yet. NULL = do not save the optimized model
+     * @throws OrtException
+     */
+    public SessionPool(OrtEnvironment env, Path model, Path optimizedModel) throws OrtException {
+        this.env = env;
+        this.model = model;
+        this.optimizedModel = optimizedModel;
+        this.size = POOL_SIZE > 0 ? POOL_SIZE : workers;
+        this.idle = new ArrayBlockingQueue<OrtSession>(size);
+        created.incrementAndGet();
+        long measured;
+        MEASUREMENT_LOCK.writeLock().lock();
+        try {
+            long residentBefore = residentMemory();
+            idle.add(createSession());
+            measured = residentBefore < 0 ? -1 : residentMemory() - residentBefore;
+        } finally {
+            MEASUREMENT_LOCK.writeLock().unlock();
+        }
+        // the measurement can still include allocations of running models, so it
+        // only raises the estimate from the model size
+        sessionMemory = Math.max((long) (model.toFile().length() * SESSION_MEMORY_FACTOR), measured);
+    }
+
+    /**
+     * Sets the listener that is called whenever the pool created another session
+     *
+     * @param listener listener, e.g. to update memory accounting
+     */
+    public void onResize(Runnable listener) {
+        this.resizeListener = listener;
+    }
+
+    /**
+     * Takes a session from the pool. Creates a new session if all sessions are in
+     * use and the pool is not full yet, otherwise waits for a session to be
+     * released. A closed pool creates a session for every run that still got
+     * the pool, which is closed again when it is released.
+     *
+     * @return session that has to be released after the run
+     * @throws OrtException
+     */
+    public OrtSession acquire() throws OrtException {
+        while (true) {
+            OrtSession session = idle.poll();
+            if (session != null) {
+                return session;
+            }
+
+            if (created.incrementAndGet() <= size || closed) {
+                MEASUREMENT_LOCK.readLock().lock();
+                try {
+                    session = createSession();
+                } catch (OrtException e) {
+                    created.decrementAndGet();
+                    throw e;
+                } finally {
+                    MEASUREMENT_LOCK.readLock().unlock();
+                }
+                Runnable listener = resizeListener;
+                if (listener != null) {
+                    listener.run();
+                }
+                return session;
+            }
+            created.decrementAndGet();
+
+            try {
+                // released sessions of a closed pool never come back, so check again
+                session = idle.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a session", e);
+            }
+            if (session != null) {
+                return session;
+            }
+        }
+    }
+
+    /**
+     * Returns a session to the pool. Closes it if the pool was closed meanwhile.
+     *
+     * @param session session taken with {@link #acquire()}
+     */
+    public void release(OrtSession session) {
+        if (closed || !idle.offer(session)) {
+            created.decrementAndGet();
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Max number of sessions of the pool
+     *
+     * @return pool size
+     */
+    public int maxSessions() {
+        return size;
+    }
+
+    /**
+     * Estimated native memory of the open sessions. Every session is estimated
+     * with the model size times simedge.sessionMemoryFactor, or with the growth
+     * of the resident memory of the process during the creation of the first
+     * session if that was larger.
+     *
+     * @return memory in bytes
+     */
+    public long memory() {
+        return created.get() * sessionMemory;
+    }
+
+    /**
+     * Number of open sessions of the model
+     *
+     * @return open sessions
+     */
+    public int sessions() {
+        return created.get();
+    }
+
+    /**
+     * Closes all idle sessions. Sessions in use are closed when they are
+     * released.
+     */
+    public void close() {
+        closed = true;
+        OrtSession session;
+        while ((session = idle.poll()) != null) {
+            created.decrementAndGet();
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Creates a session with the thread settings of the pool. Loads the optimized
+     * model file if it exists, otherwise optimizes the model and saves the result
+     * to the optimized model file. The optimized model file is tried once. If it
+     * can not be loaded it is deleted and the session is created from the model,
+     * so the next session saves it again.
+     *
+     * @return new session
+     * @throws OrtException
+     */
+    private OrtSession createSession() throws OrtException {
+        if (optimizedModel != null && Files.exists(optimizedModel)) {
+            try (var sessionOptions = sessionOptions()) {
+                // only the hardware specific layout optimizations are left to run
+                return env.createSession(optimizedModel.toString(), sessionOptions);
+            } catch (OrtException e) {
+                // e.g. written by another ONNX runtime version
+                System.err.println("Could not load optimized model " + optimizedModel + ": " + e.getMessage());
+                deleteOptimizedModel(optimizedModel);
+            }
+        } else if (optimizedModel != null && Files.isDirectory(optimizedModel.toAbsolutePath().getParent())) {
+            // written to a temporary file first so no other session sees a partial file
+            Path temporary = optimizedModel
+                    .resolveSibling(optimizedModel.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+            OrtSession session;
+            try (var sessionOptions = sessionOptions()) {
+                // layout optimizations are hardware specific and not saved
+                sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.EXTENDED_OPT);
+                sessionOptions.setOptimizedModelFilePath(temporary.toString());
+                session = env.createSession(model.toString(), sessionOptions);
+            }
+            try {
+                Files.move(temporary, optimizedModel, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Could not save optimized model " + optimizedModel);
+                deleteOptimizedModel(temporary);
+            }
+            // used as it is instead of loading the saved model again, so the first
+            // session is not created twice. It only lacks the layout optimizations.
+            return session;
+        }
+
+        try (var sessionOptions = sessionOptions()) {
+            return env.createSession(model.toString(), sessionOptions);
+        }
+    }
+
+    /**
+     * Creates session options with the thread settings of the pool
+     *
+     * @return session options that have to be closed after creating the session
+     * @throws OrtException
+     */
+    private OrtSession.SessionOptions sessionOptions() throws OrtException {
+        int intraOpThreads = INTRA_OP_THREADS > 0 ? INTRA_OP_THREADS
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+
+        var sessionOptions = new OrtSession.SessionOptions();
+        sessionOptions.setIntraOpNumThreads(intraOpThreads);
+        sessionOptions.setInterOpNumThreads(INTER_OP_THREADS);
+        if (INTER_OP_THREADS > 1) {
+            sessionOptions.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.PARALLEL);
+        }
+        return sessionOptions;
+    }
+
+    /**
+     * Resident memory of the process from /proc on Linux
+     *
+     * @return resident bytes. -1 if unknown.
+     */
+    private static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    // e.g. "VmRSS:     123456 kB"
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (Exception e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Deletes an optimized model file and ignores errors
+     *
+     * @param file file to delete
+     */
+    private static void deleteOptimizedModel(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Could not delete " + file);
+        }
+    }
+
+    /**
+     * Closes a session and ignores errors since the session is discarded anyway
+     *
+     * @param session session to close
+     */
+    private void closeSession(OrtSession session) {
+        try {
+            session.close();
+        } catch (OrtException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.simedge.runtime.ONNX;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import ai.onnxruntime.OrtException;
+
+/**
+ * Benchmark comparing the creation of a runtime from the raw model without
+ * saving the optimized model, the creation from the raw model that also saves
+ * the optimized model and the creation from the saved optimized model as it
+ * happens after a provider restart.
+ */
+public class SessionStartupBenchmark {
+
+    static final int ITERATIONS = 10;
+
+    /**
+     * Runs the benchmark
+     *
+     * @param args path of the ONNX model
+     * @throws IOException
+     * @throws OrtException
+     */
+    public static void main(String[] args) throws IOException, OrtException {
+        if (args.length < 1) {
+            System.out.println("Usage: SessionStartupBenchmark <model.onnx>");
+            return;
+        }
+        Path model = Path.of(args[0]);
+        Path optimizedModel = Files.createTempFile("simedge-benchmark", ".ort.onnx");
+
+        long[] baseline = new long[ITERATIONS];
+        long[] cold = new long[ITERATIONS];
+        long[] warm = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            // baseline: optimize the raw model without saving it
+            long start = System.nanoTime();
+            new ONNXRuntime(model).close();
+            baseline[i] = System.nanoTime() - start;
+
+            // cold: optimize the raw model and save the optimized model
+            Files.deleteIfExists(optimizedModel);
+            start = System.nanoTime();
+            new ONNXRuntime(model, optimizedModel).close();
+            cold[i] = System.nanoTime() - start;
+
+            // warm: load the optimized model without optimizing again
+            start = System.nanoTime();
+            new ONNXRuntime(model, optimizedModel).close();
+            warm[i] = System.nanoTime() - start;
+        }
+        Files.deleteIfExists(optimizedModel);
+
+        Arrays.sort(baseline);
+        Arrays.sort(cold);
+        Arrays.sort(warm);
+        System.out.println("Model: " + args[0] + " (" + Files.size(model) + " bytes)");
+        System.out.println("\tbaseline session creation: " + (baseline[ITERATIONS / 2] / 1000000.0) + " ms (median)");
+        System.out.println("\tcold session creation: " + (cold[ITERATIONS / 2] / 1000000.0) + " ms (median)");
+        System.out.println("\twarm session creation: " + (warm[ITERATIONS / 2] / 1000000.0) + " ms (median)");
+        System.out.println("\tSpeedup: " + String.format("%.1f", (double) cold[ITERATIONS / 2] / warm[ITERATIONS / 2])
+                + "x");
+    }
+
+}
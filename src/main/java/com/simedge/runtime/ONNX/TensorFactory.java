@@ -0,0 +1,225 @@
+package com.simedge.runtime.ONNX;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.simedge.protocols.PeerMessage;
+import com.simedge.protocols.ResultCodec;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+
+/**
+ * Creates input tensors from message payloads. Payloads are copied with bulk
+ * typed buffer views into pooled direct buffers in native byte order, which
+ * ONNX runtime uses without another copy. The buffer returns to the pool when
+ * the tensor is closed.
+ */
+public class TensorFactory {
+
+    // max number of idle buffers kept in the pool
+    static final int MAX_POOLED_BUFFERS = 64;
+
+    static ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * Input tensor backed by a pooled direct buffer. Closing it closes the native
+     * tensor and returns the buffer to the pool.
+     */
+    public static class PooledTensor implements AutoCloseable {
+        public final OnnxTensor tensor;
+        private ByteBuffer buffer;
+
+        PooledTensor(OnnxTensor tensor, ByteBuffer buffer) {
+            this.tensor = tensor;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void close() {
+            tensor.close();
+            release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Named input tensors of one model run. Closing it closes all tensors.
+     */
+    public static class ModelInputs implements AutoCloseable {
+        private Map<String, OnnxTensor> tensors = new HashMap<String, OnnxTensor>();
+        private List<PooledTensor> pooled = new ArrayList<PooledTensor>();
+
+        /**
+         * Adds an input tensor
+         *
+         * @param name   input name of the model
+         * @param tensor tensor that is closed with the inputs
+         */
+        public void put(String name, PooledTensor tensor) {
+            pooled.add(tensor);
+            tensors.put(name, tensor.tensor);
+        }
+
+        /**
+         * Returns the input map for the model run
+         *
+         * @return tensors by input name
+         */
+        public Map<String, OnnxTensor> map() {
+            return tensors;
+        }
+
+        @Override
+        public void close() {
+            for (PooledTensor tensor : pooled) {
+                tensor.close();
+            }
+            pooled.clear();
+            tensors.clear();
+        }
+    }
+
+    /**
+     * Create a [rows][n] tensor from one or more equally sized payloads
+     *
+     * @param env      ONNX environment
+     * @param dataType data type of the payloads
+     * @param rows     payloads, each one row of the tensor
+     * @return tensor that needs to be closed after the model run
+     * @throws OrtException
+     */
+    public static PooledTensor createTensor(OrtEnvironment env, PeerMessage.DataType dataType, ByteBuffer[] rows)
+            throws OrtException {
+        return createTensor(env, dataType, rows,
+                new long[] { rows.length, rows[0].remaining() / dataType.getDataTypeSize() });
+    }
+
+    /**
+     * Create a tensor with an explicit shape from one or more payloads. The
+     * payloads are concatenated in order.
+     *
+     * @param env      ONNX environment
+     * @param dataType data type of the payloads
+     * @param rows     payloads in big endian byte order
+     * @param shape    shape of the tensor
+     * @return tensor that needs to be closed after the model run
+     * @throws OrtException
+     */
+    public static PooledTensor createTensor(OrtEnvironment env, PeerMessage.DataType dataType, ByteBuffer[] rows,
+            long[] shape) throws OrtException {
+        int bytes = 0;
+        for (ByteBuffer row : rows) {
+            bytes += row.remaining();
+        }
+        // half precision floats are widened to floats
+        ByteBuffer buffer = acquire(dataType == PeerMessage.DataType.FLOAT16 ? bytes * 2 : bytes);
+
+        // bulk copy each row through typed views which also converts the byte order
+        for (ByteBuffer row : rows) {
+            ByteBuffer source = row.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int length = source.remaining();
+            switch (dataType) {
+                case INT:
+                    buffer.asIntBuffer().put(source.asIntBuffer());
+                    break;
+                case LONG:
+                    buffer.asLongBuffer().put(source.asLongBuffer());
+                    break;
+                case FLOAT:
+                    buffer.asFloatBuffer().put(source.asFloatBuffer());
+                    break;
+                case DOUBLE:
+                    buffer.asDoubleBuffer().put(source.asDoubleBuffer());
+                    break;
+                case CHAR:
+                    buffer.asShortBuffer().put(source.asShortBuffer());
+                    break;
+                case FLOAT16:
+                    FloatBuffer widened = buffer.asFloatBuffer();
+                    while (source.hasRemaining()) {
+                        widened.put(ResultCodec.halfToFloat(source.getShort()));
+                    }
+                    length *= 2;
+                    break;
+                default:
+                    buffer.duplicate().put(source);
+                    break;
+            }
+            buffer.position(buffer.position() + length);
+        }
+        buffer.flip();
+
+        try {
+            OnnxTensor tensor;
+            switch (dataType) {
+                case INT:
+                    tensor = OnnxTensor.createTensor(env, buffer.asIntBuffer(), shape);
+                    break;
+                case LONG:
+                    tensor = OnnxTensor.createTensor(env, buffer.asLongBuffer(), shape);
+                    break;
+                case FLOAT:
+                case FLOAT16:
+                    tensor = OnnxTensor.createTensor(env, buffer.asFloatBuffer(), shape);
+                    break;
+                case DOUBLE:
+                    tensor = OnnxTensor.createTensor(env, buffer.asDoubleBuffer(), shape);
+                    break;
+                case CHAR:
+                    // ONNX has no char type, chars are passed as int16
+                    tensor = OnnxTensor.createTensor(env, buffer.asShortBuffer(), shape);
+                    break;
+                case UINT8:
+                    tensor = OnnxTensor.createTensor(env, buffer, shape, OnnxJavaType.UINT8);
+                    break;
+                case BOOL:
+                    tensor = OnnxTensor.createTensor(env, buffer, shape, OnnxJavaType.BOOL);
+                    break;
+                default:
+                    tensor = OnnxTensor.createTensor(env, buffer, shape);
+                    break;
+            }
+            return new PooledTensor(tensor, buffer);
+        } catch (OrtException e) {
+            release(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Take a direct buffer with at least the requested capacity from the pool
+     *
+     * @param bytes required capacity
+     * @return cleared direct buffer in native byte order
+     */
+    private static ByteBuffer acquire(int bytes) {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null || buffer.capacity() < bytes) {
+            // too small buffers are dropped and replaced by a larger one
+            buffer = ByteBuffer.allocateDirect(Math.max(bytes, 64)).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool
+     *
+     * @param buffer buffer that is no longer used by a tensor
+     */
+    private static void release(ByteBuffer buffer) {
+        if (buffer != null && pool.size() < MAX_POOLED_BUFFERS) {
+            pool.offer(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.simedge.runtime;
+
+import org.drasyl.identity.DrasylAddress;
+
+import com.simedge.protocols.PeerMessage;
+
+/**
+ * Execute message waiting in the execution engine together with its sender
+ */
+public class QueuedMessage {
+
+    public final PeerMessage peerMessage;
+    public final DrasylAddress source;
+    public final long received;
+
+    /**
+     * Creates a queued message
+     *
+     * @param peerMessage Execute message
+     * @param source      Sender of the message
+     * @param received    Time the message was received
+     */
+    public QueuedMessage(PeerMessage peerMessage, DrasylAddress source, long received) {
+        this.peerMessage = peerMessage;
+        this.source = source;
+        this.received = received;
+    }
+
+    /**
+     * Checks if the client already gave up on the message
+     *
+     * @return true if the message is older than the timeout of its client
+     */
+    public boolean expired() {
+        return remaining() <= 0;
+    }
+
+    /**
+     * Time until the client gives up on the message. Counted from receiving the
+     * message, so the time on the network is not included.
+     *
+     * @return remaining time in milliseconds
+     */
+    public long remaining() {
+        return received + peerMessage.getTimeout() - System.currentTimeMillis();
+    }
+
+}
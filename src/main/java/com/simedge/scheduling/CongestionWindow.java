@@ -0,0 +1,75 @@
+package com.simedge.scheduling;
+
+/**
+ * In-flight window of a single peer. Grows additively while the latency of a
+ * peer (RTT + execution time) stays near the lowest latency seen and shrinks
+ * multiplicatively when the latency inflates or messages expire.
+ */
+public class CongestionWindow {
+
+    static final double MIN_WINDOW = 1.0;
+    static final double MAX_WINDOW = 64.0;
+    // multiplicative decrease on congestion
+    static final double DECREASE_FACTOR = 0.5;
+    // latency can grow by this factor over the base latency before shrinking
+    static final double LATENCY_TOLERANCE = 1.25;
+    // weight with which the base latency follows newer samples
+    static final double BASE_LATENCY_DRIFT = 0.01;
+
+    private double window = MIN_WINDOW;
+    private double baseLatency = -1;
+    private long lastDecrease = 0L;
+
+    /**
+     * Updates the window after a result was received
+     *
+     * @param latency Time from sending the message until the result was received
+     *                in milliseconds
+     */
+    public synchronized void onResult(double latency) {
+        if (baseLatency < 0 || latency < baseLatency) {
+            baseLatency = latency;
+        } else {
+            // follow slowly so a changed network path does not block growth forever
+            baseLatency = baseLatency * (1 - BASE_LATENCY_DRIFT) + latency * BASE_LATENCY_DRIFT;
+        }
+
+        if (latency <= baseLatency * LATENCY_TOLERANCE) {
+            // grows by about one message per round trip
+            window = Math.min(MAX_WINDOW, window + 1.0 / window);
+        } else {
+            decrease(latency);
+        }
+    }
+
+    /**
+     * Updates the window after a message expired without result
+     */
+    public synchronized void onTimeout() {
+        decrease(LocalScheduler.TIMEOUT);
+    }
+
+    /**
+     * Shrinks the window at most once per round trip so a burst of late results
+     * does not collapse the window.
+     *
+     * @param latency Latency that caused the decrease
+     */
+    private void decrease(double latency) {
+        long time = System.currentTimeMillis();
+        if (time - lastDecrease >= latency) {
+            window = Math.max(MIN_WINDOW, window * DECREASE_FACTOR);
+            lastDecrease = time;
+        }
+    }
+
+    /**
+     * Number of messages that can be in flight to the peer
+     *
+     * @return window size
+     */
+    public synchronized int size() {
+        return (int) window;
+    }
+
+}
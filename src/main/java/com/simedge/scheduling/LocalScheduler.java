@@ -2,6 +2,8 @@ package com.simedge.scheduling;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.drasyl.identity.DrasylAddress;
@@ -18,8 +20,8 @@ public class LocalScheduler {
     // private ConcurrentHashMap<Long, Long> messageController = new
     // ConcurrentHashMap<Long, Long>();
     ConcurrentHashMap<String, EvictingQueue<Double>> evictionQueue = new ConcurrentHashMap<String, EvictingQueue<Double>>();
+    private ConcurrentHashMap<String, CongestionWindow> windows = new ConcurrentHashMap<String, CongestionWindow>();
 
-    private static final int MAX_MESSAGES = 1;
     public static final int TIMEOUT = 300;
     private static boolean stop = false;
 
@@ -35,6 +37,7 @@ public class LocalScheduler {
     public LocalScheduler() {
         messageControllers.put(ConnectionPool.node.identity().getAddress().toString(),
                 new ConcurrentHashMap<Long, Long>());
+        windows.put(ConnectionPool.node.identity().getAddress().toString(), new CongestionWindow());
         peerLastUsed.put(ConnectionPool.node.identity().getAddress().toString(), -1L);
     }
 
@@ -91,6 +94,7 @@ public class LocalScheduler {
             probabilities.remove(address);
             peerLastUsed.remove(address);
             messageControllers.remove(address);
+            windows.remove(address);
             evictionQueue.remove(address);
             addresses.remove(address);
 
@@ -194,6 +198,22 @@ public class LocalScheduler {
         }
     }
 
+    /**
+     * Updates the round trip time of a peer without an execution, e.g. after a
+     * ping
+     * 
+     * @param address String of peer address
+     * @param rtt     Round trip time to peer
+     */
+    private void updateRTT(String address, double rtt) {
+        synchronized (addresses) {
+            if (!address.equals(ConnectionPool.node.identity().getAddress().toString())) {
+                RTT.put(address, RTT.get(address) * 0.9 + rtt * 0.1);
+                updateProbability();
+            }
+        }
+    }
+
     // Section for message controller
     /**
      * Checks message controller for a peer.
@@ -202,7 +222,7 @@ public class LocalScheduler {
      * @return Returns true if message controller has no space left
      */
     private boolean fullMessageController(String hash) {
-        if (messageControllers.get(hash).size() >= MAX_MESSAGES) {
+        if (messageControllers.get(hash).size() >= windows.get(hash).size()) {
             cleanUpMessages(hash);
             return true;
         } else {
@@ -249,6 +269,7 @@ public class LocalScheduler {
                     hadToCleanUp = true;
                     System.out.println("CLEANING EXPIRED MESSAGE: " + v.getKey());
                     messageControllers.get(hash).remove(v.getKey());
+                    windows.get(hash).onTimeout();
                 }
             }
 
@@ -292,6 +313,7 @@ public class LocalScheduler {
 
         peerLastUsed.put(address, -1L);
         messageControllers.put(address, new ConcurrentHashMap<Long, Long>());
+        windows.put(address, new CongestionWindow());
         evictionQueue.put(address, new EvictingQueue<Double>(10));
         messageControllers.get(address).put(-1L, System.currentTimeMillis());
         ConnectionPool.node.sendMessage(address, new PeerMessage(-1, modelHash));
@@ -306,6 +328,46 @@ public class LocalScheduler {
         peerLastUsed.put(peer, System.currentTimeMillis());
     }
 
+    /**
+     * Removes a message the peer rejected because its execution queue was full.
+     * A rejection is treated like an expired message and shrinks the window of
+     * the peer.
+     * 
+     * @param source      Peer address
+     * @param peerMessage Rejected message from peer
+     */
+    public void rejectMessage(DrasylAddress source, PeerMessage peerMessage) {
+        var messageController = messageControllers.get(source.toString());
+        if (messageController != null && messageController.remove(peerMessage.messageNumber) != null) {
+            windows.get(source.toString()).onTimeout();
+        }
+        updatePeerLastUsed(source.toString());
+    }
+
+    /**
+     * Returns the number of messages that can currently be in flight to a peer
+     * 
+     * @param address Peer address
+     * @return window size of the peer. 0 if the peer is unknown.
+     */
+    public int getWindowSize(String address) {
+        CongestionWindow window = windows.get(address);
+        return window == null ? 0 : window.size();
+    }
+
+    /**
+     * Returns the current window sizes of all peers
+     * 
+     * @return Map of peer address to window size
+     */
+    public Map<String, Integer> getWindowSizes() {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (var window : windows.entrySet()) {
+            sizes.put(window.getKey(), window.getValue().size());
+        }
+        return sizes;
+    }
+
     /**
      * Update message controller by removing message returned
      * 
@@ -320,6 +382,25 @@ public class LocalScheduler {
 
             }
 
+            Long sentTime = messageControllers.get(source.toString()).get(peerMessage.messageNumber);
+            if (sentTime == null) {
+                // message already expired and was cleaned up
+                updatePeerLastUsed(source.toString());
+                return;
+            }
+            if (peerMessage.messageNumber == -1) {
+                // the ping reply waited for the warm-up of the model, which is reported
+                // as onnx time. Only the rest is network RTT and the warm-up is no
+                // execution time of later requests.
+                double rtt = System.currentTimeMillis() - sentTime - peerMessage.onnxTime;
+                windows.get(source.toString()).onResult(rtt);
+                updateRTT(source.toString(), rtt);
+                messageControllers.get(source.toString()).remove(peerMessage.messageNumber);
+                updatePeerLastUsed(source.toString());
+                return;
+            }
+            windows.get(source.toString()).onResult(System.currentTimeMillis() - sentTime);
+
             // logging
             SimEdgeAPI.logger.toWrite
                     .add(System.currentTimeMillis() + ";" + ConnectionPool.node.identity().getAddress().toString() + ";"
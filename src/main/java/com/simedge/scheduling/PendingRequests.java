@@ -0,0 +1,71 @@
+package com.simedge.scheduling;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.simedge.protocols.PeerMessage;
+
+/**
+ * Table of requests that were sent to a resource and still wait for their
+ * result. Requests are matched to their results by message number.
+ */
+public class PendingRequests {
+
+    private ConcurrentHashMap<Long, CompletableFuture<PeerMessage>> pending = new ConcurrentHashMap<Long, CompletableFuture<PeerMessage>>();
+
+    /**
+     * Registers a request before it is sent. The returned future fails with a
+     * TimeoutException if no result arrives in time.
+     *
+     * @param messageNumber Message number of the request
+     * @param timeout       Timeout in milliseconds
+     * @return future that is completed with the result message
+     */
+    public CompletableFuture<PeerMessage> register(long messageNumber, long timeout) {
+        CompletableFuture<PeerMessage> future = new CompletableFuture<PeerMessage>();
+        pending.put(messageNumber, future);
+        future.orTimeout(timeout, TimeUnit.MILLISECONDS)
+                .whenComplete((result, e) -> pending.remove(messageNumber, future));
+        return future;
+    }
+
+    /**
+     * Completes the pending request belonging to a result message
+     *
+     * @param result Result message received from a resource
+     * @return true if a pending request was completed
+     */
+    public boolean complete(PeerMessage result) {
+        CompletableFuture<PeerMessage> future = pending.remove(result.messageNumber);
+        if (future == null) {
+            return false;
+        }
+        return future.complete(result);
+    }
+
+    /**
+     * Fails a pending request
+     *
+     * @param messageNumber Message number of the request
+     * @param cause         Reason for the failure
+     * @return true if a pending request was failed
+     */
+    public boolean fail(long messageNumber, Throwable cause) {
+        CompletableFuture<PeerMessage> future = pending.remove(messageNumber);
+        if (future == null) {
+            return false;
+        }
+        return future.completeExceptionally(cause);
+    }
+
+    /**
+     * Number of requests still waiting for a result
+     *
+     * @return number of pending requests
+     */
+    public int size() {
+        return pending.size();
+    }
+
+}
@@ -1,57 +1,150 @@
 package com.simedge.utils;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import com.simedge.peer.ConnectionPool;
 import com.simedge.protocols.BrokerProtocol;
 import com.simedge.runtime.ONNX.ONNXRuntime;
 
 /**
- * Model cache based on least recently used data structure
+ * Model cache based on least recently used data structure. Models are stored
+ * as files in the {@link ModelStore} and are memory mapped while they are
+ * cached, so they do not take space on the Java heap. New models stay on the
+ * heap only until their file is written. Cached models and live ONNX sessions
+ * have separate memory budgets.
  */
 public class LRUCache {
-    long MAX_MEMORY;
-    long USED_MEMORY = 0L;
-    ConcurrentHashMap<ByteBuffer, byte[]> models = new ConcurrentHashMap<ByteBuffer, byte[]>();
-    ConcurrentHashMap<ByteBuffer, ONNXRuntime> onnxRuntimes = new ConcurrentHashMap<ByteBuffer, ONNXRuntime>();
+    // budget of the native memory of live sessions. 0 = same as the models
+    static final long SESSION_MEMORY = Long.parseLong(System.getProperty("simedge.sessionMemoryMB", "0")) * 1024
+            * 1024;
+    // runtimes that were not used for this long are closed
+    static final long SESSION_IDLE_SECONDS = Long.parseLong(System.getProperty("simedge.sessionIdleSeconds", "600"));
 
-    ConcurrentLinkedDeque<ByteBuffer> LRU = new ConcurrentLinkedDeque<ByteBuffer>();
-    private ConcurrentHashMap<ByteBuffer, Boolean> downloadingModel = new ConcurrentHashMap<ByteBuffer, Boolean>();
+    ModelStore store = new ModelStore("modelCache");
+    // mapped models, or heap models until they are written, weighted by their
+    // size in bytes
+    WeightedLRUCache<ByteBuffer, ByteBuffer> models;
+    // runtimes weighted by the native memory their sessions take
+    WeightedLRUCache<ByteBuffer, ONNXRuntime> onnxRuntimes;
+
+    // one download per model, completed with the mapped model or null if the
+    // download failed
+    private ConcurrentHashMap<ByteBuffer, CompletableFuture<ByteBuffer>> downloads = new ConcurrentHashMap<ByteBuffer, CompletableFuture<ByteBuffer>>();
+    private ExecutorService downloader = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "simedge-downloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "simedge-session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Initialize model cache
      * 
-     * @param MAX_MEMORY Max size of model cache
+     * @param MAX_MEMORY Max size of mapped models. Max size of live sessions too
+     *                   unless simedge.sessionMemoryMB is set.
      */
     public LRUCache(long MAX_MEMORY) {
-        this.MAX_MEMORY = MAX_MEMORY;
-        try {
-            loadPersistantLRUCache();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        this.models = new WeightedLRUCache<ByteBuffer, ByteBuffer>(MAX_MEMORY, model -> model.capacity());
+        this.onnxRuntimes = new WeightedLRUCache<ByteBuffer, ONNXRuntime>(
+                SESSION_MEMORY > 0 ? SESSION_MEMORY : MAX_MEMORY, ONNXRuntime::memory);
+        loadPersistantLRUCache();
+        long sweepInterval = Math.max(1, SESSION_IDLE_SECONDS / 4);
+        sweeper.scheduleWithFixedDelay(this::closeIdleRuntimes, sweepInterval, sweepInterval, TimeUnit.SECONDS);
     }
 
     /**
-     * Put onnx Runtime environment into cache
+     * Put onnx Runtime environment into cache. If another thread cached a runtime
+     * for the model first, the given runtime is closed and the cached one is
+     * returned. Least recently used runtimes are closed if the sessions exceed
+     * their memory budget, also when a runtime grows by another session later.
+     * Their models stay cached.
      * 
      * @param modelHash Model hash for execution
      * @param runtime   Onnx runtime initialized with model
+     * @return the runtime that is cached for the model
+     */
+    public synchronized ONNXRuntime putONNXRuntime(ByteBuffer modelHash, ONNXRuntime runtime) {
+        ONNXRuntime cached = onnxRuntimes.get(modelHash);
+        if (cached != null) {
+            runtime.close();
+            return cached;
+        }
+
+        if (runtime.memory() > onnxRuntimes.maxWeight()) {
+            onnxRuntimes.setMaxWeight(runtime.memory());
+        }
+        for (var evicted : onnxRuntimes.put(modelHash, runtime)) {
+            evicted.getValue().close();
+        }
+        runtime.onResize(() -> {
+            for (var evicted : onnxRuntimes.reweigh(modelHash)) {
+                evicted.getValue().close();
+            }
+        });
+        return runtime;
+    }
+
+    /**
+     * Closes the runtimes that were not used for simedge.sessionIdleSeconds. Their
+     * models stay cached, so the runtime is created again on the next request.
+     */
+    private void closeIdleRuntimes() {
+        for (ByteBuffer hash : onnxRuntimes.keys()) {
+            ONNXRuntime runtime = onnxRuntimes.get(hash);
+            if (runtime != null && runtime.idleTime() > SESSION_IDLE_SECONDS * 1000) {
+                synchronized (this) {
+                    if (onnxRuntimes.remove(hash) == runtime) {
+                        System.out.println("Closing idle runtime of " + ConnectionPool.bytesToHex(hash.array()));
+                        runtime.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * File of a model in the model store
+     * 
+     * @param modelHash model hash
+     * @return path of the model
      */
-    public void putONNXRuntime(ByteBuffer modelHash, ONNXRuntime runtime) {
-        onnxRuntimes.put(modelHash, runtime);
+    public Path modelFile(ByteBuffer modelHash) {
+        return store.path(modelHash);
+    }
+
+    /**
+     * File of the optimized model that is saved next to the model file
+     * 
+     * @param modelHash model hash
+     * @return path of the optimized model in the model cache folder
+     */
+    public Path optimizedModelFile(ByteBuffer modelHash) {
+        return store.optimizedPath(modelHash);
+    }
+
+    /**
+     * Future of the pending write of a model. The model file can only be used
+     * once it completed.
+     * 
+     * @param modelHash model hash
+     * @return future that completes once the model file exists
+     */
+    public CompletableFuture<Void> persisted(ByteBuffer modelHash) {
+        return store.persisted(modelHash);
     }
 
     /**
@@ -61,119 +154,223 @@ public class LRUCache {
      * @return returns initialized Onnx runtime with corresponding model
      */
     public ONNXRuntime getONNXRuntime(ByteBuffer modelHash) {
+        // the model of a used runtime is used as well
+        models.get(modelHash);
         return onnxRuntimes.get(modelHash);
     }
 
     /**
-     * This method will add a new model to the cache and evict the least recently
-     * used models in case there is notenough space left in the cache.
+     * This method will add a new model to the cache and queue it for writing to
+     * the model store. The least recently used models are evicted in case there
+     * is notenough space left in the cache. Evicted models stay in the model
+     * store, so eviction never writes.
      * 
      * @param hash  the sha1 hash of the model
      * @param model the model data
-     * @return a ByteBuffer array with all hashes of the models that were evicted
+     * @return a ByteBuffer array with all hashes of the models that were evicted.
+     *         Null if no model was evicted.
      */
     public ByteBuffer[] put(ByteBuffer hash, byte[] model) {
-        // if max memory is no enough for model update it to model size
-        if (model.length > MAX_MEMORY) {
-            MAX_MEMORY = model.length;
-            return put(hash, model);
-        }
-
-        // if there is space
-        if (MAX_MEMORY - USED_MEMORY >= model.length) {
-            if (models.put(hash, model) == null) {
-                // add model if absent
-                LRU.addFirst(hash);
-                USED_MEMORY += model.length;
-                return null;
-            } else {
-                // if present push on top of LRUCache
-                LRU.remove(hash);
-                LRU.add(hash);
-                return null;
+        if (store.contains(hash)) {
+            try {
+                // callers hash the model bytes, so the stored file needs no check
+                store.verified(hash, model.length);
+                return load(hash);
+            } catch (IOException e) {
+                System.err.println("Could not map model " + ConnectionPool.bytesToHex(hash.array()));
             }
+        }
 
-        } else {
-            // if not enough space evict LRU until there is space
-
-            ArrayList<ByteBuffer> removed = new ArrayList<ByteBuffer>();
-
-            // remove last until memory free
-            while (MAX_MEMORY - USED_MEMORY < model.length) {
-                ByteBuffer lruHASH = LRU.removeLast();
-                // tell broker model is no longer present on client
-                ConnectionPool.brokerConnection.brokerProtocol.MODEL_EXPIRED(lruHASH.array());
-                removed.add(lruHASH);
-                // free used memeory
-                USED_MEMORY -= models.get(lruHASH).length;
-                byte[] fileData = models.remove(lruHASH);
-                onnxRuntimes.remove(lruHASH);
-
-                // try writing the model to disk
+        ByteBuffer[] removed = insert(hash, ByteBuffer.wrap(model));
+        store.writeAsync(hash, model).whenComplete((written, e) -> {
+            if (e != null) {
+                System.err.println("Could not store model " + ConnectionPool.bytesToHex(hash.array()));
+            } else if (models.containsKey(hash)) {
+                // replace the heap copy with the mapped file
                 try {
-                    Files.write(new File("modelCache/" + ConnectionPool.bytesToHex(lruHASH.array())).toPath(),
-                            fileData);
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    load(hash);
+                } catch (IOException mapException) {
+                    System.err.println("Could not map model " + ConnectionPool.bytesToHex(hash.array()));
                 }
-
             }
+        });
+        return removed;
+    }
+
+    /**
+     * Downloads a model from the model repository into the model store. The model
+     * is mapped on its next use.
+     * 
+     * @param hash the sha1 hash of the model
+     * @return true if the model is stored. False if the repository does not have
+     *         the model.
+     * @throws IOException if the download failed. It is resumed by the next
+     *                     download of the model.
+     */
+    public boolean download(ByteBuffer hash) throws IOException {
+        return store.download(hash, ConnectionPool.modelRepository);
+    }
+
+    /**
+     * Maps a model from the model store into the cache and evicts the least
+     * recently used models in case there is notenough space left in the cache.
+     * 
+     * @param hash the sha1 hash of the model
+     * @return a ByteBuffer array with all hashes of the models that were evicted.
+     *         Null if no model was evicted.
+     * @throws IOException if the model is not in the model store
+     */
+    public ByteBuffer[] load(ByteBuffer hash) throws IOException {
+        return insert(hash, store.map(hash));
+    }
+
+    /**
+     * Adds model bytes to the cache and evicts the least recently used models in
+     * case there is notenough space left in the cache. The broker is told about
+     * the evicted models after the eviction.
+     * 
+     * @param hash  the sha1 hash of the model
+     * @param model mapped or heap model bytes
+     * @return a ByteBuffer array with all hashes of the models that were evicted.
+     *         Null if no model was evicted.
+     */
+    private ByteBuffer[] insert(ByteBuffer hash, ByteBuffer model) {
+        // if max memory is no enough for model update it to model size
+        if (model.capacity() > models.maxWeight()) {
+            models.setMaxWeight(model.capacity());
+        }
 
-            // now with enough space add the model and return the removed models
-            models.put(hash, model);
-            LRU.addFirst(hash);
-            USED_MEMORY += model.length;
+        List<Map.Entry<ByteBuffer, ByteBuffer>> evicted = models.put(hash, model);
+        if (evicted.isEmpty()) {
+            return null;
+        }
 
-            ByteBuffer[] removedArray = new ByteBuffer[removed.size()];
-            for (int i = 0; i < removed.size(); i++) {
-                removedArray[i] = removed.get(i);
+        ByteBuffer[] removedArray = new ByteBuffer[evicted.size()];
+        for (int i = 0; i < evicted.size(); i++) {
+            ByteBuffer lruHASH = evicted.get(i).getKey();
+            removedArray[i] = lruHASH;
+            ONNXRuntime runtime = onnxRuntimes.remove(lruHASH);
+            if (runtime != null) {
+                runtime.close();
             }
+        }
 
-            return removedArray;
+        // tell broker models are no longer present on client. Not connected yet
+        // while the cache is filled on startup.
+        if (ConnectionPool.brokerConnection != null) {
+            for (ByteBuffer lruHASH : removedArray) {
+                ConnectionPool.brokerConnection.brokerProtocol.MODEL_EXPIRED(lruHASH.array());
+            }
         }
+
+        return removedArray;
     }
 
     /**
-     * Gets model bytes as array from cache and updates LRU position. If model is
-     * not in cache it will load the file from disk.
+     * Gets the mapped model from cache and updates LRU position. If model is not
+     * in cache it will be mapped from the model store. If it is not in the model
+     * store a download is started in the background.
      * 
      * @param hash hash of the model
-     * @return returns the bytes of the model. Null if model is not in cache or on
-     *         disk.
+     * @return returns the read only bytes of the model. Null if model is not in
+     *         cache or on disk.
      */
-    public byte[] get(ByteBuffer hash) {
+    public ByteBuffer get(ByteBuffer hash) {
+        return loadAsync(hash).getNow(null);
+    }
 
-        byte[] data;
+    /**
+     * Gets the mapped model without blocking. Models in the cache and verified
+     * models of the model store are returned right away. Stored models that still
+     * need to be hashed are mapped in the background, missing models are
+     * downloaded in the background. Concurrent requests for the same model share
+     * one download or hashing.
+     * 
+     * @param hash hash of the model
+     * @return future of the read only bytes of the model. Completed with null if
+     *         the download failed.
+     */
+    public CompletableFuture<ByteBuffer> loadAsync(ByteBuffer hash) {
+        ByteBuffer data;
         // if model is present in cache than return bytes
         if ((data = models.get(hash)) != null) {
-            // if present push on top of LRUCache
-            LRU.remove(hash);
-            LRU.add(hash);
-            return data;
-        } else {
-            // if not in cache load from disk
-            try {
-                var file = new File("modelCache/" + ConnectionPool.bytesToHex(hash.array()));
-                this.put(hash, FileUtils
-                        .readFileToByteArray(file));
-            } catch (IOException e) {
-                // if not on disk then get from server
-                if (downloadingModel.get(hash) != null && downloadingModel.get(hash)) {
-                    return null;
-                }
-                downloadingModel.put(hash, true);
+            return CompletableFuture.completedFuture(data.asReadOnlyBuffer());
+        }
+
+        // the key needs its own copy of the hash instead of a view into a packet
+        ByteBuffer key = ByteBuffer.wrap(toArray(hash));
+        CompletableFuture<ByteBuffer> download = downloads.get(key);
+        if (download != null) {
+            return download;
+        }
+
+        if (store.pending(key)) {
+            // evicted before its write finished
+            return store.persisted(key).handle((written, e) -> e == null ? map(key) : null);
+        }
 
-                // TODO do in thread so not blocking
+        if (store.contains(key) && store.isVerified(key)) {
+            // if not in cache map from disk, which does not read the file
+            return CompletableFuture.completedFuture(map(key));
+        }
 
-                BrokerProtocol.downloadModel(ConnectionPool.bytesToHex(hash.array()));
-                downloadingModel.remove(hash);
+        // if not on disk then get from server. Unverified models are hashed on the
+        // downloader as well, so callers like the drasyl event thread never read a
+        // whole model.
+        download = new CompletableFuture<ByteBuffer>();
+        CompletableFuture<ByteBuffer> running = downloads.putIfAbsent(key, download);
+        if (running != null) {
+            return running;
+        }
 
-                return null;
-                // throw away message after download since it took way too long
+        final CompletableFuture<ByteBuffer> started = download;
+        downloader.execute(() -> {
+            ByteBuffer model = null;
+            try {
+                if (store.contains(key) || BrokerProtocol.downloadModel(ConnectionPool.bytesToHex(key.array()))) {
+                    model = map(key);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                // removed first so later requests find the model in the store
+                downloads.remove(key);
+                started.complete(model);
             }
+        });
+        return started;
+    }
+
+    /**
+     * Maps a stored model into the cache if it is not mapped yet
+     * 
+     * @param hash hash of the model
+     * @return read only bytes of the model. Null if it could not be mapped.
+     */
+    private ByteBuffer map(ByteBuffer hash) {
+        try {
+            ByteBuffer data = models.get(hash);
+            if (data == null) {
+                load(hash);
+                data = models.get(hash);
+            }
+            return data == null ? null : data.asReadOnlyBuffer();
+        } catch (IOException e) {
+            System.err.println("Could not map model " + ConnectionPool.bytesToHex(hash.array()));
+            return null;
         }
-        return models.get(hash);
+    }
+
+    /**
+     * Copies the bytes of a hash, which may be a read only view
+     * 
+     * @param hash hash of the model
+     * @return hash bytes
+     */
+    private static byte[] toArray(ByteBuffer hash) {
+        byte[] bytes = new byte[hash.remaining()];
+        hash.duplicate().get(bytes);
+        return bytes;
     }
 
     /**
@@ -183,10 +380,7 @@ public class LRUCache {
      * @return true if model is downloading
      */
     public boolean downloadingModel(byte[] modelHash) {
-        if (downloadingModel.get(ByteBuffer.wrap(modelHash)) == null) {
-            return false;
-        }
-        return downloadingModel.get(ByteBuffer.wrap(modelHash));
+        return downloads.containsKey(ByteBuffer.wrap(modelHash));
     }
 
     /**
@@ -196,45 +390,64 @@ public class LRUCache {
      * @return Returns true if model is stored
      */
     public boolean hasModel(byte[] modelHash) {
-        return models.contains(ByteBuffer.wrap(modelHash));
+        return models.containsKey(ByteBuffer.wrap(modelHash));
     }
 
     /**
-     * Saves models from cache to disk to allow for persistant model cache between
-     * system launches
+     * Memory used by cached models
      * 
-     * @throws IOException
+     * @return mapped and heap bytes
      */
-    public void saveModelChacheToDisk() throws IOException {
-        BufferedWriter bw = new BufferedWriter(new FileWriter("Persistant_LRUCache", true));
-        while (LRU.size() > 0) {
-            ByteBuffer toRemove = LRU.removeLast();
-            bw.write(ConnectionPool.bytesToHex(toRemove.array()));
-            bw.newLine();
-            System.out.println("SAVING: " + ConnectionPool.bytesToHex(toRemove.array()));
-            Files.write(Path.of("modelCache/" + ConnectionPool.bytesToHex(toRemove.array())),
-                    models.remove(toRemove));
-        }
-
-        bw.close();
+    public long getMappedMemory() {
+        return models.weight();
+    }
 
+    /**
+     * Memory used by the sessions of live runtimes
+     * 
+     * @return estimated session bytes
+     */
+    public long getSessionMemory() {
+        return onnxRuntimes.weight();
     }
 
     /**
-     * Loads the cache from disk on startup.
+     * Saves the manifest of the model store to allow for persistant model cache
+     * between system launches. Waits for models that are not written yet, all
+     * other models are already on disk.
      * 
      * @throws IOException
      */
-    private void loadPersistantLRUCache() throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader("Persistant_LRUCache"));
-        String modelHash;
-        while ((modelHash = br.readLine()) != null) {
-            this.put(ByteBuffer.wrap(ConnectionPool.hexToBytes(modelHash)),
-                    FileUtils.readFileToByteArray(new File("modelCache/" + modelHash)));
-        }
-        br.close();
+    public void saveModelChacheToDisk() throws IOException {
+        store.flush();
+        // least recently used first, so they get the lowest recency
+        store.saveManifest(models.keys());
+        System.out.println("SAVING: manifest of " + models.size() + " cached models");
+    }
 
-        new File("Persistant_LRUCache").delete();
+    /**
+     * Maps the most recently used verified models from the manifest on startup
+     * until the cache is full. Mapping reads no model bytes, they are loaded
+     * lazily by the page cache.
+     */
+    private void loadPersistantLRUCache() {
+        List<ByteBuffer> recent = store.recent();
+        // least recently used first so the most recent models end up on top
+        List<ByteBuffer> premapped = new ArrayList<ByteBuffer>();
+        long size = 0;
+        for (ByteBuffer hash : recent) {
+            if (store.isVerified(hash) && size + store.size(hash) <= models.maxWeight()) {
+                size += store.size(hash);
+                premapped.add(0, hash);
+            }
+        }
+        for (ByteBuffer hash : premapped) {
+            try {
+                load(hash);
+            } catch (IOException e) {
+                System.err.println("Could not map model " + ConnectionPool.bytesToHex(hash.array()));
+            }
+        }
     }
 
 }
@@ -0,0 +1,429 @@
+package com.simedge.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.simedge.peer.ConnectionPool;
+import com.simedge.repository.ModelRepository;
+
+/**
+ * Content addressed model files. Every model is stored once in a file named by
+ * its hash and is memory mapped when it is used, so model bytes are held by
+ * the page cache and not by the Java heap. New models are written behind by a
+ * background thread so adding a model never waits for the disk.
+ * 
+ * A manifest records size, recency and verification state of every model
+ * file, so startup only reads the manifest and the folder listing. Models that
+ * are not verified yet are hashed when they are mapped the first time.
+ */
+public class ModelStore {
+
+    static final String MANIFEST = "manifest";
+
+    private Path directory;
+    private ConcurrentHashMap<ByteBuffer, Entry> entries = new ConcurrentHashMap<ByteBuffer, Entry>();
+    // models queued for writing, completed once the file exists
+    private ConcurrentHashMap<ByteBuffer, CompletableFuture<Void>> pendingWrites = new ConcurrentHashMap<ByteBuffer, CompletableFuture<Void>>();
+    private ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "simedge-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a store in a directory. Creates the directory if it is missing.
+     *
+     * @param directory folder of the model files
+     */
+    public ModelStore(String directory) {
+        this.directory = Path.of(directory);
+        try {
+            Files.createDirectories(this.directory);
+            loadManifest();
+        } catch (IOException e) {
+            System.err.println("Could not read model folder " + directory);
+        }
+    }
+
+    /**
+     * Manifest entry of a model file
+     */
+    private static class Entry {
+        private long size;
+        // higher is more recently used
+        private long recency;
+        private volatile boolean verified;
+
+        Entry(long size, long recency, boolean verified) {
+            this.size = size;
+            this.recency = recency;
+            this.verified = verified;
+        }
+    }
+
+    /**
+     * File of a model
+     *
+     * @param hash model hash
+     * @return path of the model file
+     */
+    public Path path(ByteBuffer hash) {
+        return directory.resolve(ConnectionPool.bytesToHex(hash.array()));
+    }
+
+    /**
+     * File of the optimized model that is saved next to the model file
+     *
+     * @param hash model hash
+     * @return path of the optimized model
+     */
+    public Path optimizedPath(ByteBuffer hash) {
+        return directory.resolve(ConnectionPool.bytesToHex(hash.array()) + ".ort.onnx");
+    }
+
+    /**
+     * Checks if a model file exists
+     *
+     * @param hash model hash
+     * @return true if the model is stored
+     */
+    public boolean contains(ByteBuffer hash) {
+        return Files.exists(path(hash));
+    }
+
+    /**
+     * Stores a model. Since files are named by their content an existing file is
+     * kept. The file is written to a temporary file first so no reader sees a
+     * partial model.
+     *
+     * @param hash  model hash
+     * @param model model bytes
+     * @throws IOException
+     */
+    public void write(ByteBuffer hash, byte[] model) throws IOException {
+        Path file = path(hash);
+        if (Files.exists(file)) {
+            return;
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(temporary, model);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        verified(hash, model.length);
+    }
+
+    /**
+     * Downloads a model into the store in a single pass. The bytes are hashed
+     * while they are received and written to a partial file, which is renamed
+     * to the model file once the hash matches. A partial file left by an
+     * interrupted download is resumed from its end.
+     *
+     * @param hash       model hash
+     * @param repository repository to download from
+     * @return true if the model is stored. False if the repository does not have
+     *         the model.
+     * @throws IOException if the transfer failed or the model does not match its
+     *                     hash. A failed transfer can be resumed.
+     */
+    public boolean download(ByteBuffer hash, ModelRepository repository) throws IOException {
+        Path file = path(hash);
+        if (Files.exists(file)) {
+            return true;
+        }
+        Path part = file.resolveSibling(file.getFileName() + ".part");
+        MessageDigest md = digest();
+        long offset = 0;
+        if (Files.exists(part)) {
+            // the hash has to cover the bytes received before
+            try (InputStream received = new DigestInputStream(Files.newInputStream(part), md)) {
+                offset = received.transferTo(OutputStream.nullOutputStream());
+            }
+            System.out.println("Resuming download of " + file.getFileName() + " at " + offset + " bytes");
+        }
+
+        boolean found;
+        try (OutputStream target = new DigestOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.APPEND)), md)) {
+            found = repository.download(ConnectionPool.bytesToHex(hash.array()), offset, target);
+        }
+        if (!found) {
+            Files.deleteIfExists(part);
+            return false;
+        }
+
+        byte[] received = md.digest();
+        if (!Arrays.equals(received, hash.array())) {
+            Files.deleteIfExists(part);
+            throw new IOException("Downloaded model " + ConnectionPool.bytesToHex(received) + " does not match "
+                    + file.getFileName());
+        }
+        long size = Files.size(part);
+        Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        verified(hash, size);
+        return true;
+    }
+
+    /**
+     * Records that the file of a model has been checked against its hash, e.g.
+     * after a download
+     *
+     * @param hash model hash
+     * @param size size of the model in bytes
+     */
+    public void verified(ByteBuffer hash, long size) {
+        Entry entry = entries.computeIfAbsent(hash, key -> new Entry(size, 0, true));
+        entry.size = size;
+        entry.verified = true;
+    }
+
+    /**
+     * Queues a model for writing. Models that are stored or queued already are
+     * not written again.
+     *
+     * @param hash  model hash
+     * @param model model bytes. Must not be changed until the write completed.
+     * @return future that completes once the model file exists
+     */
+    public CompletableFuture<Void> writeAsync(ByteBuffer hash, byte[] model) {
+        if (Files.exists(path(hash))) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> write = new CompletableFuture<Void>();
+        CompletableFuture<Void> queued = pendingWrites.putIfAbsent(hash, write);
+        if (queued != null) {
+            return queued;
+        }
+
+        writer.execute(() -> {
+            try {
+                write(hash, model);
+                // removed first so readers that miss the pending write find the file
+                pendingWrites.remove(hash);
+                write.complete(null);
+            } catch (IOException e) {
+                pendingWrites.remove(hash);
+                write.completeExceptionally(e);
+            }
+        });
+        return write;
+    }
+
+    /**
+     * Checks if a model is queued for writing
+     *
+     * @param hash model hash
+     * @return true if the write is pending
+     */
+    public boolean pending(ByteBuffer hash) {
+        return pendingWrites.containsKey(hash);
+    }
+
+    /**
+     * Future of the pending write of a model
+     *
+     * @param hash model hash
+     * @return future that completes once the model is written. Already completed
+     *         if no write is pending.
+     */
+    public CompletableFuture<Void> persisted(ByteBuffer hash) {
+        CompletableFuture<Void> write = pendingWrites.get(hash);
+        return write != null ? write : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Waits until all queued models are written
+     */
+    public void flush() {
+        for (var write : pendingWrites.values()) {
+            try {
+                write.join();
+            } catch (Exception e) {
+                System.err.println("Could not write model: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Memory maps a model file read only
+     *
+     * @param hash model hash
+     * @return mapped model bytes
+     * @throws IOException if the model is not stored
+     */
+    public MappedByteBuffer map(ByteBuffer hash) throws IOException {
+        MappedByteBuffer model;
+        try (FileChannel channel = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            model = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        Entry entry = entries.computeIfAbsent(hash, key -> new Entry(model.capacity(), 0, false));
+        if (!entry.verified || entry.size != model.capacity()) {
+            // first use of a file that was not written by the store
+            if (!Arrays.equals(digest(model), hash.array())) {
+                entries.remove(hash);
+                Files.deleteIfExists(path(hash));
+                throw new IOException("Model file " + path(hash) + " does not match its hash");
+            }
+            verified(hash, model.capacity());
+        }
+        return model;
+    }
+
+    /**
+     * Checks if the file of a model has been checked against its hash
+     *
+     * @param hash model hash
+     * @return true if verified
+     */
+    public boolean isVerified(ByteBuffer hash) {
+        Entry entry = entries.get(hash);
+        return entry != null && entry.verified;
+    }
+
+    /**
+     * Stored models by recency
+     *
+     * @return hashes of the stored models, most recently used first
+     */
+    public List<ByteBuffer> recent() {
+        List<ByteBuffer> hashes = new ArrayList<ByteBuffer>(entries.keySet());
+        hashes.sort((a, b) -> Long.compare(entries.get(b).recency, entries.get(a).recency));
+        return hashes;
+    }
+
+    /**
+     * Size of a stored model from the manifest
+     *
+     * @param hash model hash
+     * @return size in bytes. -1 if the model is not stored.
+     */
+    public long size(ByteBuffer hash) {
+        Entry entry = entries.get(hash);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Writes the manifest. The given models become the most recently used ones.
+     *
+     * @param used hashes of the used models, least recently used first
+     * @throws IOException
+     */
+    public void saveManifest(List<ByteBuffer> used) throws IOException {
+        long recency = 0;
+        for (Entry entry : entries.values()) {
+            recency = Math.max(recency, entry.recency);
+        }
+        for (ByteBuffer hash : used) {
+            Entry entry = entries.get(hash);
+            if (entry != null) {
+                entry.recency = ++recency;
+            }
+        }
+
+        // written to a temporary file first so a crash never leaves half a manifest
+        Path manifest = directory.resolve(MANIFEST);
+        Path temporary = directory.resolve(MANIFEST + ".tmp");
+        try (BufferedWriter bw = Files.newBufferedWriter(temporary)) {
+            for (var entry : entries.entrySet()) {
+                bw.write(ConnectionPool.bytesToHex(entry.getKey().array()) + ";" + entry.getValue().size + ";"
+                        + entry.getValue().recency + ";" + (entry.getValue().verified ? "1" : "0") + ";");
+                bw.newLine();
+            }
+        }
+        Files.move(temporary, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the manifest and adds model files that are missing in it as not
+     * verified. Entries of deleted files are dropped and entries of files whose
+     * size changed have to be verified again.
+     *
+     * @throws IOException
+     */
+    private void loadManifest() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            try (BufferedReader br = Files.newBufferedReader(manifest)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] contents = line.split(";");
+                    if (contents.length < 4) {
+                        continue;
+                    }
+                    entries.put(ByteBuffer.wrap(ConnectionPool.hexToBytes(contents[0])),
+                            new Entry(Long.parseLong(contents[1]), Long.parseLong(contents[2]),
+                                    contents[3].equals("1")));
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Broken model manifest, verifying all models again");
+                entries.clear();
+            }
+        }
+
+        List<ByteBuffer> files = new ArrayList<ByteBuffer>();
+        try (var listing = Files.newDirectoryStream(directory)) {
+            for (Path file : listing) {
+                // skip optimized models, temporary and partial files and the manifest
+                if (file.getFileName().toString().matches("[0-9a-f]{40}")) {
+                    ByteBuffer hash = ByteBuffer.wrap(ConnectionPool.hexToBytes(file.getFileName().toString()));
+                    files.add(hash);
+                    Entry entry = entries.computeIfAbsent(hash, key -> new Entry(-1, 0, false));
+                    long size = Files.size(file);
+                    if (entry.size != size) {
+                        entry.size = size;
+                        entry.verified = false;
+                    }
+                }
+            }
+        }
+        entries.keySet().retainAll(files);
+    }
+
+    /**
+     * SHA-1 hash of a model
+     *
+     * @param model model bytes
+     * @return hash
+     */
+    private static byte[] digest(ByteBuffer model) {
+        MessageDigest md = digest();
+        md.update(model.duplicate());
+        return md.digest();
+    }
+
+    /**
+     * New SHA-1 digest. Digests are not thread safe, so every hash needs its own.
+     *
+     * @return digest
+     */
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.simedge.utils;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Least recently used cache with a weight limit. Values are read from a
+ * concurrent map without locking. Reads are recorded in a read buffer and
+ * applied to the access ordered recency list in batches, so concurrent hits do
+ * not contend on the list. Writes and evictions hold a lock and are O(1) per
+ * entry. The weight of a value is taken when it is added and can be updated
+ * with {@link #reweigh(Object)} if the value grows or shrinks.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WeightedLRUCache<K, V> {
+
+    // recorded reads before the reading thread tries to apply them
+    static final int READ_BUFFER_SIZE = 64;
+    // reads are dropped while the buffer is this full. Losing a few reads only
+    // makes the recency order less exact.
+    static final int MAX_READ_BUFFER_SIZE = 16 * READ_BUFFER_SIZE;
+
+    private long maxWeight;
+    private ToLongFunction<V> weigher;
+    private AtomicLong weight = new AtomicLong();
+    // values with the key they were added with. Reads record that key instead
+    // of the lookup key, which may be a view into a large buffer, e.g. a packet.
+    private ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+
+    // access ordered keys with the weight of their value, least recently used
+    // first. Guarded by lock.
+    private LinkedHashMap<K, Long> recency = new LinkedHashMap<K, Long>(16, 0.75f, true);
+    private ReentrantLock lock = new ReentrantLock();
+
+    private ConcurrentLinkedQueue<K> readBuffer = new ConcurrentLinkedQueue<K>();
+    private AtomicInteger readBufferSize = new AtomicInteger();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxWeight max total weight of the entries
+     * @param weigher   weight of a value, e.g. its size in bytes
+     */
+    public WeightedLRUCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Gets a value and marks it as most recently used
+     *
+     * @param key key of the value
+     * @return the value. Null if not cached.
+     */
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordRead(node.key);
+        return node.value;
+    }
+
+    /**
+     * Checks if a key is cached without changing its recency
+     *
+     * @param key key to check
+     * @return true if cached
+     */
+    public boolean containsKey(K key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * Adds or replaces a value and marks it as most recently used. Evicts least
+     * recently used entries until the total weight fits the max weight again.
+     *
+     * @param key   key of the value
+     * @param value value to cache
+     * @return the evicted entries, least recently used first. Empty if nothing was
+     *         evicted.
+     */
+    public List<Map.Entry<K, V>> put(K key, V value) {
+        List<Map.Entry<K, V>> evicted = new ArrayList<Map.Entry<K, V>>();
+        lock.lock();
+        try {
+            drainReadBuffer();
+            data.put(key, new Node<K, V>(key, value));
+            long valueWeight = weigher.applyAsLong(value);
+            Long previous = recency.put(key, valueWeight);
+            weight.addAndGet(valueWeight - (previous == null ? 0 : previous));
+            evict(key, evicted);
+        } finally {
+            lock.unlock();
+        }
+        return evicted;
+    }
+
+    /**
+     * Takes the weight of a cached value again after it changed and evicts least
+     * recently used entries if the total weight exceeds the max weight now. Counts
+     * as a use of the value.
+     *
+     * @param key key of the value
+     * @return the evicted entries, least recently used first. Empty if nothing was
+     *         evicted.
+     */
+    public List<Map.Entry<K, V>> reweigh(K key) {
+        List<Map.Entry<K, V>> evicted = new ArrayList<Map.Entry<K, V>>();
+        lock.lock();
+        try {
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                long valueWeight = weigher.applyAsLong(node.value);
+                Long previous = recency.replace(key, valueWeight);
+                weight.addAndGet(valueWeight - (previous == null ? 0 : previous));
+                evict(key, evicted);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes a value
+     *
+     * @param key key of the value
+     * @return the removed value. Null if not cached.
+     */
+    public V remove(K key) {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            Node<K, V> node = data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            weight.addAndGet(-recency.remove(key));
+            return node.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keys in recency order
+     *
+     * @return keys, least recently used first
+     */
+    public List<K> keys() {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            return new ArrayList<K>(recency.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total weight of the cached values
+     *
+     * @return weight
+     */
+    public long weight() {
+        return weight.get();
+    }
+
+    /**
+     * Max total weight of the cached values
+     *
+     * @return max weight
+     */
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Changes the max weight. Takes effect with the next put.
+     *
+     * @param maxWeight new max weight
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Number of cached values
+     *
+     * @return size
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Evicts least recently used entries until the total weight fits the max
+     * weight. Must hold the lock.
+     *
+     * @param keep    key that is never evicted, e.g. the one just added
+     * @param evicted list the evicted entries are added to
+     */
+    private void evict(K keep, List<Map.Entry<K, V>> evicted) {
+        Iterator<Map.Entry<K, Long>> leastRecent = recency.entrySet().iterator();
+        while (weight.get() > maxWeight && leastRecent.hasNext()) {
+            Map.Entry<K, Long> lru = leastRecent.next();
+            if (lru.getKey().equals(keep)) {
+                continue;
+            }
+            leastRecent.remove();
+            Node<K, V> lruNode = data.remove(lru.getKey());
+            weight.addAndGet(-lru.getValue());
+            evicted.add(new AbstractMap.SimpleImmutableEntry<K, V>(lru.getKey(), lruNode.value));
+        }
+    }
+
+    /**
+     * Records a read in the read buffer. Applies the buffer if it is full and no
+     * other thread holds the lock.
+     *
+     * @param key key that was read
+     */
+    private void recordRead(K key) {
+        int size = readBufferSize.get();
+        if (size < MAX_READ_BUFFER_SIZE) {
+            readBuffer.offer(key);
+            size = readBufferSize.incrementAndGet();
+        }
+        if (size >= READ_BUFFER_SIZE && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the recorded reads to the recency order. Must hold the lock.
+     */
+    private void drainReadBuffer() {
+        K key;
+        while ((key = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            // moves the key to the most recently used end if it is still cached
+            recency.get(key);
+        }
+    }
+
+    /**
+     * Cached value with the key it was added with
+     */
+    private static class Node<K, V> {
+        private final K key;
+        private final V value;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+}
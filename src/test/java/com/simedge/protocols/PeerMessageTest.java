@@ -0,0 +1,210 @@
+package com.simedge.protocols;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.simedge.protocols.PeerMessage.DataType;
+import com.simedge.protocols.PeerMessage.Input;
+import com.simedge.protocols.PeerMessage.MessageType;
+import com.simedge.protocols.PeerMessage.ResultEncoding;
+import com.simedge.scheduling.LocalScheduler;
+
+/**
+ * Round trips of peer messages through their wire format
+ */
+public class PeerMessageTest {
+
+    static final byte[] HASH = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 };
+
+    @Test
+    public void execute() {
+        PeerMessage sent = new PeerMessage(MessageType.EXECUTE, DataType.FLOAT, bytes(0, 16), HASH, "dense_input",
+                new int[] { 3, 1, 2 }, ResultEncoding.FP16);
+        PeerMessage received = roundTrip(sent);
+
+        assertEquals(sent.messageNumber, received.messageNumber);
+        assertEquals(MessageType.EXECUTE, received.messageType);
+        assertEquals(DataType.FLOAT, received.getDataType());
+        assertEquals(ResultEncoding.FP16, received.getEncoding());
+        assertArrayEquals(HASH, received.getModelHashBytes());
+        assertEquals("dense_input", received.getInputName());
+        assertArrayEquals(new int[] { 3, 1, 2 }, received.getIndices());
+        assertNull(received.getShape());
+        assertTrue(received.getExtraInputs().isEmpty());
+        assertTrue(received.getOutputNames().isEmpty());
+        assertEquals(ByteBuffer.wrap(bytes(0, 16)), received.getData());
+        assertEquals(1, received.getRows().length);
+    }
+
+    @Test
+    public void receivedMessageIsViewOfPacket() {
+        byte[] packet = new PeerMessage(MessageType.EXECUTE, DataType.FLOAT, bytes(0, 16), HASH, "dense_input",
+                new int[] { 3 }).getMessageBytes();
+        PeerMessage received = new PeerMessage(packet);
+        packet[packet.length - 1] = 99;
+
+        assertEquals(99, received.getData().get(15));
+        assertTrue(received.getModelHash().isReadOnly());
+    }
+
+    @Test
+    public void timeout() {
+        PeerMessage sent = new PeerMessage(MessageType.EXECUTE, DataType.FLOAT, bytes(0, 16), HASH, "dense_input",
+                new int[0]);
+        assertEquals(LocalScheduler.TIMEOUT, sent.getTimeout());
+        sent.setTimeout(1500);
+
+        assertEquals(1500, roundTrip(sent).getTimeout());
+    }
+
+    @Test
+    public void executeBatch() {
+        PeerMessage sent = new PeerMessage(DataType.INT, List.of(bytes(0, 8), bytes(8, 8), bytes(16, 8)), HASH,
+                "dense_input", new int[0]);
+        PeerMessage received = roundTrip(sent);
+
+        assertEquals(MessageType.EXECUTE_BATCH, received.messageType);
+        assertEquals(3, received.getBatchSize());
+        assertTrue(received.hasEqualRows());
+        ByteBuffer[] rows = received.getRows();
+        assertEquals(3, rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(ByteBuffer.wrap(bytes(8 * i, 8)), rows[i]);
+        }
+        assertEquals(0, received.getIndices().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void executeBatchWithUnequalRows() {
+        new PeerMessage(DataType.INT, List.of(bytes(0, 8), bytes(8, 4)), HASH, "dense_input", new int[0]);
+    }
+
+    @Test
+    public void shapedExecute() {
+        long[] shape = new long[] { 1, 3, 2, 2 };
+        PeerMessage sent = new PeerMessage(DataType.UINT8, bytes(0, 12), shape, HASH, "image", new int[0],
+                ResultEncoding.RAW);
+        PeerMessage received = roundTrip(sent);
+
+        assertEquals(DataType.UINT8, received.getDataType());
+        assertArrayEquals(shape, received.getShape());
+        assertEquals(ByteBuffer.wrap(bytes(0, 12)), received.getData());
+    }
+
+    @Test
+    public void multiInputExecute() {
+        PeerMessage sent = new PeerMessage(List.of(new Input("state", DataType.FLOAT, bytes(0, 16), null),
+                new Input("obs", DataType.LONG, bytes(16, 24), new long[] { 1, 3 }),
+                new Input("mask", DataType.BOOL, bytes(40, 2), new long[] { 1, 2 })), HASH, new int[] { 0 },
+                ResultEncoding.INT8);
+        PeerMessage received = roundTrip(sent);
+
+        assertEquals("state", received.getInputName());
+        assertEquals(DataType.FLOAT, received.getDataType());
+        assertEquals(ByteBuffer.wrap(bytes(0, 16)), received.getData());
+        assertEquals(ResultEncoding.INT8, received.getEncoding());
+
+        List<Input> extraInputs = received.getExtraInputs();
+        assertEquals(2, extraInputs.size());
+        assertEquals("obs", extraInputs.get(0).getName());
+        assertEquals(DataType.LONG, extraInputs.get(0).getDataType());
+        assertArrayEquals(new long[] { 1, 3 }, extraInputs.get(0).getShape());
+        assertEquals(ByteBuffer.wrap(bytes(16, 24)), extraInputs.get(0).getRows(1)[0]);
+        assertEquals("mask", extraInputs.get(1).getName());
+        assertEquals(DataType.BOOL, extraInputs.get(1).getDataType());
+        assertEquals(ByteBuffer.wrap(bytes(40, 2)), extraInputs.get(1).getRows(1)[0]);
+    }
+
+    @Test
+    public void outputSelection() {
+        PeerMessage sent = new PeerMessage(List.of(new Input("state", DataType.FLOAT, bytes(0, 16), null)), HASH,
+                new int[0], ResultEncoding.RAW);
+        sent.setOutputNames(List.of("value", "policy"));
+        PeerMessage received = roundTrip(sent);
+
+        assertEquals(List.of("value", "policy"), received.getOutputNames());
+        assertEquals(ByteBuffer.wrap(bytes(0, 16)), received.getData());
+    }
+
+    @Test
+    public void result() {
+        PeerMessage sent = new PeerMessage(ByteBuffer.wrap(bytes(0, 10)), 42L, 7L, ResultEncoding.FP16);
+        PeerMessage received = roundTrip(sent);
+
+        assertEquals(MessageType.RESULT, received.messageType);
+        assertEquals(42L, received.messageNumber);
+        assertEquals(7L, received.onnxTime);
+        assertEquals(ResultEncoding.FP16, received.getEncoding());
+        assertEquals(ByteBuffer.wrap(bytes(0, 10)), received.getData());
+    }
+
+    @Test
+    public void resultBatch() {
+        ByteBuffer[] results = new ByteBuffer[] { ByteBuffer.wrap(bytes(0, 8)),
+                ByteBuffer.wrap(new byte[] { 1 }), ByteBuffer.wrap(bytes(8, 4)) };
+        PeerMessage received = roundTrip(new PeerMessage(results, 43L, 5L));
+
+        assertEquals(MessageType.RESULT_BATCH, received.messageType);
+        List<ByteBuffer> decoded = received.getResults();
+        assertEquals(3, decoded.size());
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(results[i], decoded.get(i));
+        }
+    }
+
+    @Test
+    public void rejected() {
+        PeerMessage received = roundTrip(new PeerMessage(MessageType.REJECTED, 44L));
+
+        assertEquals(MessageType.REJECTED, received.messageType);
+        assertEquals(44L, received.messageNumber);
+    }
+
+    @Test
+    public void unevenRowsAreDetected() {
+        PeerMessage sent = new PeerMessage(DataType.BYTE, List.of(bytes(0, 3), bytes(3, 3)), HASH, "dense_input",
+                new int[0]);
+        byte[] packet = sent.getMessageBytes();
+        // drop the last byte of the payload
+        byte[] truncated = new byte[packet.length - 1];
+        System.arraycopy(packet, 0, truncated, 0, truncated.length);
+
+        assertFalse(new PeerMessage(truncated).hasEqualRows());
+    }
+
+    /**
+     * Serializes a message and parses it again. Also checks the announced length.
+     *
+     * @param sent message to send
+     * @return received message
+     */
+    private static PeerMessage roundTrip(PeerMessage sent) {
+        byte[] packet = sent.getMessageBytes();
+        assertEquals(sent.getMessageLength(), packet.length);
+        return new PeerMessage(packet);
+    }
+
+    /**
+     * Test payload of consecutive byte values
+     *
+     * @param start  first value
+     * @param length number of bytes
+     * @return bytes
+     */
+    private static byte[] bytes(int start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (start + i);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.simedge.protocols;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.simedge.protocols.PeerMessage.ResultEncoding;
+
+/**
+ * Round trips of float results through the compact result encodings
+ */
+public class ResultCodecTest {
+
+    @Test
+    public void everyHalfSurvivesTheRoundTrip() {
+        for (int bits = 0; bits <= 0xffff; bits++) {
+            float value = ResultCodec.halfToFloat((short) bits);
+            if (Float.isNaN(value)) {
+                assertTrue(Float.isNaN(ResultCodec.halfToFloat(ResultCodec.floatToHalf(value))));
+            } else {
+                assertEquals(bits, ResultCodec.floatToHalf(value) & 0xffff);
+            }
+        }
+    }
+
+    @Test
+    public void floatToHalfRoundsAndSaturates() {
+        assertEquals(1.0f, ResultCodec.halfToFloat(ResultCodec.floatToHalf(1.0001f)), 0f);
+        assertEquals(65504f, ResultCodec.halfToFloat(ResultCodec.floatToHalf(65504f)), 0f);
+        assertEquals(Float.POSITIVE_INFINITY, ResultCodec.halfToFloat(ResultCodec.floatToHalf(1e6f)), 0f);
+        assertEquals(0f, ResultCodec.halfToFloat(ResultCodec.floatToHalf(1e-10f)), 0f);
+    }
+
+    @Test
+    public void fp16() {
+        float[] values = new float[] { 0f, -1.5f, 3.25f, 1024f, Float.NEGATIVE_INFINITY };
+        ByteBuffer encoded = ResultCodec.encode(result(values), ResultEncoding.FP16);
+
+        assertEquals(values.length * 2, encoded.remaining());
+        assertArrayEquals(values, ResultCodec.decode(encoded, ResultEncoding.FP16), 0f);
+    }
+
+    @Test
+    public void int8() {
+        float[] values = new float[] { -2f, 0f, 0.5f, 3f, 1.25f };
+        ByteBuffer encoded = ResultCodec.encode(result(values), ResultEncoding.INT8);
+
+        assertEquals(ResultCodec.INT8_HEADER + values.length, encoded.remaining());
+        // half a step of (max - min) / 255
+        assertArrayEquals(values, ResultCodec.decode(encoded, ResultEncoding.INT8), 5f / 255 / 2);
+    }
+
+    @Test
+    public void int8OfConstantResult() {
+        float[] values = new float[] { 7f, 7f, 7f };
+
+        assertArrayEquals(values,
+                ResultCodec.decode(ResultCodec.encode(result(values), ResultEncoding.INT8), ResultEncoding.INT8), 0f);
+    }
+
+    @Test
+    public void int8NeedsFiniteValues() {
+        assertTrue(ResultCodec.canEncode(result(new float[] { 1f, 2f }), ResultEncoding.INT8));
+        assertFalse(ResultCodec.canEncode(result(new float[] { 1f, Float.NaN }), ResultEncoding.INT8));
+        assertFalse(ResultCodec.canEncode(result(new float[] { Float.POSITIVE_INFINITY }), ResultEncoding.INT8));
+        assertFalse(ResultCodec.canEncode(result(new float[] { -3e38f, 3e38f }), ResultEncoding.INT8));
+        assertTrue(ResultCodec.canEncode(result(new float[] { Float.NaN }), ResultEncoding.FP16));
+    }
+
+    @Test
+    public void fp16NeedsValuesInHalfRange() {
+        assertTrue(ResultCodec.canEncode(result(new float[] { -65504f, 65504f }), ResultEncoding.FP16));
+        assertTrue(ResultCodec.canEncode(result(new float[] { Float.NEGATIVE_INFINITY }), ResultEncoding.FP16));
+        assertFalse(ResultCodec.canEncode(result(new float[] { 1f, 70000f }), ResultEncoding.FP16));
+        assertFalse(ResultCodec.canEncode(result(new float[] { -1e6f }), ResultEncoding.FP16));
+        assertTrue(ResultCodec.canEncode(result(new float[] { 1e6f }), ResultEncoding.RAW));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void int8RejectsNaN() {
+        ResultCodec.encode(result(new float[] { 1f, Float.NaN }), ResultEncoding.INT8);
+    }
+
+    @Test
+    public void raw() {
+        float[] values = new float[] { 1f, -2f, 3.5f };
+
+        assertArrayEquals(values,
+                ResultCodec.decode(ResultCodec.encode(result(values), ResultEncoding.RAW), ResultEncoding.RAW), 0f);
+    }
+
+    /**
+     * Float result as the provider reduces it
+     *
+     * @param values float values
+     * @return values in native byte order
+     */
+    private static ByteBuffer result(float[] values) {
+        ByteBuffer result = ByteBuffer.allocate(values.length * 4).order(ByteOrder.nativeOrder());
+        result.asFloatBuffer().put(values);
+        return result;
+    }
+
+}
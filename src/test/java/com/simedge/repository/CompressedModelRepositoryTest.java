@@ -0,0 +1,119 @@
+package com.simedge.repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Downloads through the compressed repository and its fallback to the plain
+ * model
+ */
+public class CompressedModelRepositoryTest {
+
+    private MemoryRepository backend;
+    private ModelRepository repository;
+    private byte[] model;
+
+    @Before
+    public void upload() throws IOException {
+        backend = new MemoryRepository();
+        repository = new CompressedModelRepository(backend);
+        model = new byte[200000];
+        for (int i = 0; i < model.length; i++) {
+            model[i] = (byte) (i % 13);
+        }
+        repository.upload("model", model);
+    }
+
+    @Test
+    public void storesPlainAndCompressedCopy() {
+        assertArrayEquals(model, backend.files.get("model"));
+        assertTrue(backend.files.get("model" + CompressedModelRepository.SUFFIX).length < model.length);
+    }
+
+    @Test
+    public void downloadsCompressedCopy() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        assertTrue(repository.download("model", 0, target));
+        assertArrayEquals(model, target.toByteArray());
+    }
+
+    @Test
+    public void resumesFromPlainModel() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        target.write(model, 0, 5000);
+
+        assertTrue(repository.download("model", 5000, target));
+        assertArrayEquals(model, target.toByteArray());
+    }
+
+    @Test
+    public void fallsBackWithoutCompressedCopy() throws IOException {
+        backend.files.remove("model" + CompressedModelRepository.SUFFIX);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        assertTrue(repository.download("model", 0, target));
+        assertArrayEquals(model, target.toByteArray());
+        assertFalse(repository.download("other", 0, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void abortedTransferKeepsValidPrefix() {
+        backend.abort = true;
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try {
+            repository.download("model", 0, target);
+            throw new AssertionError("Aborted transfer was not reported");
+        } catch (IOException e) {
+            // the plain model must not be appended to the prefix
+            byte[] prefix = target.toByteArray();
+            assertTrue(prefix.length > 0);
+            assertArrayEquals(Arrays.copyOf(model, prefix.length), prefix);
+        }
+    }
+
+    /**
+     * Repository in memory. An aborted transfer of a compressed copy sends half
+     * of it and reports the copy as missing.
+     */
+    private static class MemoryRepository implements ModelRepository {
+        private Map<String, byte[]> files = new HashMap<String, byte[]>();
+        private boolean abort;
+
+        @Override
+        public boolean download(String hash, long offset, OutputStream target) throws IOException {
+            byte[] file = files.get(hash);
+            if (file == null) {
+                return false;
+            }
+            if (abort && hash.endsWith(CompressedModelRepository.SUFFIX)) {
+                target.write(file, 0, file.length / 2);
+                return false;
+            }
+            target.write(file, (int) offset, file.length - (int) offset);
+            return true;
+        }
+
+        @Override
+        public boolean upload(String hash, byte[] model) {
+            files.put(hash, model);
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
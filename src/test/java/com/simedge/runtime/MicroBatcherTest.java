@@ -0,0 +1,139 @@
+package com.simedge.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.simedge.protocols.PeerMessage;
+import com.simedge.protocols.PeerMessage.DataType;
+import com.simedge.protocols.PeerMessage.MessageType;
+
+/**
+ * Gathering of execute messages into batches
+ */
+public class MicroBatcherTest {
+
+    static final byte[] HASH = new byte[20];
+    static final byte[] OTHER_HASH = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+            19, 20 };
+
+    @Test
+    public void idleEngineRunsRightAway() throws Exception {
+        RecordingEngine engine = new RecordingEngine(true);
+        MicroBatcher batcher = new MicroBatcher(engine);
+
+        batcher.add(message(HASH));
+
+        assertEquals(1, engine.dispatched.poll().size());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void busyEngineBatchesUntilDelay() throws Exception {
+        RecordingEngine engine = new RecordingEngine(false);
+        MicroBatcher batcher = new MicroBatcher(engine);
+
+        // holding the batcher keeps the timer from flushing while adding
+        synchronized (batcher) {
+            for (int i = 0; i < 3; i++) {
+                batcher.add(message(HASH));
+            }
+            batcher.add(message(OTHER_HASH));
+            assertNull(engine.dispatched.poll());
+        }
+
+        // each model is flushed once after the delay
+        List<QueuedMessage> first = engine.next();
+        List<QueuedMessage> second = engine.next();
+        assertEquals(4, first.size() + second.size());
+        assertEquals(1, Math.min(first.size(), second.size()));
+        assertNull(engine.dispatched.poll(50, TimeUnit.MILLISECONDS));
+        batcher.shutdown();
+    }
+
+    @Test
+    public void fullBatchIsFlushed() throws Exception {
+        RecordingEngine engine = new RecordingEngine(false);
+        MicroBatcher batcher = new MicroBatcher(engine);
+
+        synchronized (batcher) {
+            for (int i = 0; i < MicroBatcher.MAX_BATCH_SIZE + 1; i++) {
+                batcher.add(message(HASH));
+            }
+        }
+
+        // the full batch is flushed by add, the rest after the delay
+        assertEquals(MicroBatcher.MAX_BATCH_SIZE, engine.dispatched.poll().size());
+        assertEquals(1, engine.next().size());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void differentOutputsAreNotBatched() throws Exception {
+        RecordingEngine engine = new RecordingEngine(false);
+        MicroBatcher batcher = new MicroBatcher(engine);
+
+        synchronized (batcher) {
+            batcher.add(message(HASH));
+            QueuedMessage selected = message(HASH);
+            selected.peerMessage.setOutputNames(List.of("value"));
+            batcher.add(selected);
+        }
+
+        assertEquals(1, engine.next().size());
+        assertEquals(1, engine.next().size());
+        batcher.shutdown();
+    }
+
+    /**
+     * Creates a queued execute message of one float row
+     *
+     * @param hash model hash
+     * @return queued message
+     */
+    private static QueuedMessage message(byte[] hash) {
+        PeerMessage peerMessage = new PeerMessage(MessageType.EXECUTE, DataType.FLOAT, new byte[16], hash, "input",
+                new int[0]);
+        return new QueuedMessage(peerMessage, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Engine that records dispatched batches instead of running them
+     */
+    private static class RecordingEngine extends ExecutionEngine {
+        private boolean idle;
+        private LinkedBlockingQueue<List<QueuedMessage>> dispatched = new LinkedBlockingQueue<List<QueuedMessage>>();
+
+        RecordingEngine(boolean idle) {
+            super(1);
+            this.idle = idle;
+        }
+
+        @Override
+        boolean dispatch(List<QueuedMessage> batch) {
+            dispatched.add(batch);
+            return true;
+        }
+
+        @Override
+        boolean idle() {
+            return idle;
+        }
+
+        /**
+         * Waits for the next dispatched batch
+         *
+         * @return batch
+         * @throws InterruptedException
+         */
+        List<QueuedMessage> next() throws InterruptedException {
+            return dispatched.poll(1, TimeUnit.SECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.simedge.runtime.ONNX;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+
+/**
+ * Gathering of reduction indicies from batched results
+ */
+public class GatherPlanTest {
+
+    @Test
+    public void gathersRunsAndSingleElements() {
+        ByteBuffer rows = floats(0, 16);
+        ByteBuffer target = ByteBuffer.allocate(20);
+
+        // second row of a [2][8] result
+        GatherPlan.of(IntBuffer.wrap(new int[] { 1, 2, 3, 7, 0 }), 4).gather(rows, 32, 32, target);
+
+        target.flip();
+        float[] expected = new float[] { 9, 10, 11, 15, 8 };
+        for (float value : expected) {
+            assertEquals(value, target.getFloat(), 0f);
+        }
+    }
+
+    @Test
+    public void gathersFromDirectBuffers() {
+        ByteBuffer rows = ByteBuffer.allocateDirect(64).put(floats(0, 16)).flip();
+        ByteBuffer target = ByteBuffer.allocate(8);
+
+        GatherPlan.of(IntBuffer.wrap(new int[] { 5, 2 }), 4).gather(rows, 0, 64, target);
+
+        target.flip();
+        assertEquals(5f, target.getFloat(), 0f);
+        assertEquals(2f, target.getFloat(), 0f);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexBehindTheRow() {
+        GatherPlan.of(IntBuffer.wrap(new int[] { 8 }), 4).gather(floats(0, 16), 0, 32, ByteBuffer.allocate(4));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsNegativeIndex() {
+        // would read the last element of the first row
+        GatherPlan.of(IntBuffer.wrap(new int[] { -1 }), 4).gather(floats(0, 16), 32, 32, ByteBuffer.allocate(4));
+    }
+
+    /**
+     * Big endian floats of consecutive values
+     *
+     * @param start first value
+     * @param count number of floats
+     * @return buffer of the floats
+     */
+    private static ByteBuffer floats(int start, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 4);
+        for (int i = 0; i < count; i++) {
+            buffer.putFloat(start + i);
+        }
+        return buffer.flip();
+    }
+
+}
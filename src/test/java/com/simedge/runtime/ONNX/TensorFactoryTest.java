@@ -0,0 +1,94 @@
+package com.simedge.runtime.ONNX;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.simedge.protocols.PeerMessage.DataType;
+import com.simedge.protocols.ResultCodec;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+
+/**
+ * Input tensors built from message payloads
+ */
+public class TensorFactoryTest {
+
+    static final OrtEnvironment env = OrtEnvironment.getEnvironment();
+
+    @Before
+    public void emptyPool() {
+        TensorFactory.pool.clear();
+    }
+
+    @Test
+    public void rowsAreConvertedFromBigEndian() throws OrtException {
+        ByteBuffer[] rows = new ByteBuffer[] { ByteBuffer.allocate(8).putInt(1).putInt(2).flip(),
+                ByteBuffer.allocate(8).putInt(3).putInt(-4).flip() };
+
+        try (TensorFactory.PooledTensor tensor = TensorFactory.createTensor(env, DataType.INT, rows)) {
+            assertArrayEquals(new long[] { 2, 2 }, tensor.tensor.getInfo().getShape());
+            int[] values = new int[4];
+            tensor.tensor.getIntBuffer().get(values);
+            assertArrayEquals(new int[] { 1, 2, 3, -4 }, values);
+        }
+        // the payload is not consumed
+        assertEquals(8, rows[0].remaining());
+    }
+
+    @Test
+    public void halfFloatsAreWidened() throws OrtException {
+        ByteBuffer row = ByteBuffer.allocate(8);
+        for (float value : new float[] { 1.5f, -2f, 0.25f, 65504f }) {
+            row.putShort(ResultCodec.floatToHalf(value));
+        }
+        row.flip();
+        long[] shape = new long[] { 1, 2, 2 };
+
+        try (TensorFactory.PooledTensor tensor = TensorFactory.createTensor(env, DataType.FLOAT16,
+                new ByteBuffer[] { row }, shape)) {
+            assertEquals(OnnxJavaType.FLOAT, tensor.tensor.getInfo().type);
+            assertArrayEquals(shape, tensor.tensor.getInfo().getShape());
+            float[] values = new float[4];
+            tensor.tensor.getFloatBuffer().get(values);
+            assertArrayEquals(new float[] { 1.5f, -2f, 0.25f, 65504f }, values, 0f);
+        }
+    }
+
+    @Test
+    public void buffersAreReused() throws OrtException {
+        ByteBuffer[] rows = new ByteBuffer[] { ByteBuffer.allocate(16) };
+
+        TensorFactory.createTensor(env, DataType.FLOAT, rows).close();
+        assertEquals(1, TensorFactory.pool.size());
+        ByteBuffer pooled = TensorFactory.pool.peek();
+
+        TensorFactory.PooledTensor tensor = TensorFactory.createTensor(env, DataType.FLOAT, rows);
+        assertEquals(0, TensorFactory.pool.size());
+        tensor.close();
+        assertSame(pooled, TensorFactory.pool.peek());
+        assertEquals(1, TensorFactory.pool.size());
+    }
+
+    @Test
+    public void poolIsBounded() throws OrtException {
+        ByteBuffer[] rows = new ByteBuffer[] { ByteBuffer.allocate(16) };
+        TensorFactory.PooledTensor[] tensors = new TensorFactory.PooledTensor[TensorFactory.MAX_POOLED_BUFFERS + 1];
+        for (int i = 0; i < tensors.length; i++) {
+            tensors[i] = TensorFactory.createTensor(env, DataType.FLOAT, rows);
+        }
+        for (TensorFactory.PooledTensor tensor : tensors) {
+            tensor.close();
+        }
+
+        assertEquals(TensorFactory.MAX_POOLED_BUFFERS, TensorFactory.pool.size());
+    }
+
+}
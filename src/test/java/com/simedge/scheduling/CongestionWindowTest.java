@@ -0,0 +1,71 @@
+package com.simedge.scheduling;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Additive increase and multiplicative decrease of the in-flight window
+ */
+public class CongestionWindowTest {
+
+    @Test
+    public void growsByAboutOneMessagePerWindow() {
+        CongestionWindow window = new CongestionWindow();
+        assertEquals(1, window.size());
+
+        window.onResult(10);
+        assertEquals(2, window.size());
+        // 2 + 1/2 + 1/2.5 + 1/2.9
+        window.onResult(10);
+        window.onResult(10);
+        assertEquals(2, window.size());
+        window.onResult(10);
+        assertEquals(3, window.size());
+    }
+
+    @Test
+    public void staysBelowMaximum() {
+        CongestionWindow window = new CongestionWindow();
+        for (int i = 0; i < 10000; i++) {
+            window.onResult(10);
+        }
+        assertEquals((int) CongestionWindow.MAX_WINDOW, window.size());
+    }
+
+    @Test
+    public void inflatedLatencyHalvesOncePerRoundTrip() {
+        CongestionWindow window = grown(16);
+
+        window.onResult(1000);
+        assertEquals(8, window.size());
+        // further late results of the same round trip are ignored
+        window.onResult(1000);
+        assertEquals(8, window.size());
+    }
+
+    @Test
+    public void timeoutHalvesDownToMinimum() {
+        CongestionWindow window = grown(2);
+
+        window.onTimeout();
+        assertEquals(1, window.size());
+        window.onTimeout();
+        assertEquals(1, window.size());
+    }
+
+    /**
+     * Creates a window grown to a size with a base latency of 10 ms
+     *
+     * @param size window size
+     * @return window
+     */
+    private static CongestionWindow grown(int size) {
+        CongestionWindow window = new CongestionWindow();
+        while (window.size() < size) {
+            window.onResult(10);
+        }
+        return window;
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.simedge.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.simedge.protocols.PeerMessage;
+import com.simedge.protocols.PeerMessage.MessageType;
+
+/**
+ * Matching of results to pending requests
+ */
+public class PendingRequestsTest {
+
+    @Test
+    public void resultCompletesRequest() throws Exception {
+        PendingRequests pending = new PendingRequests();
+        CompletableFuture<PeerMessage> future = pending.register(1L, 10000);
+        PeerMessage result = new PeerMessage(MessageType.RESULT, 1L);
+
+        assertTrue(pending.complete(result));
+        assertSame(result, future.get());
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    public void unknownResultIsIgnored() {
+        PendingRequests pending = new PendingRequests();
+        CompletableFuture<PeerMessage> future = pending.register(1L, 10000);
+
+        assertFalse(pending.complete(new PeerMessage(MessageType.RESULT, 2L)));
+        assertFalse(future.isDone());
+        assertEquals(1, pending.size());
+    }
+
+    @Test
+    public void failedRequest() throws Exception {
+        PendingRequests pending = new PendingRequests();
+        CompletableFuture<PeerMessage> future = pending.register(1L, 10000);
+
+        assertTrue(pending.fail(1L, new RejectedExecutionException("rejected")));
+        assertFalse(pending.fail(1L, new RejectedExecutionException("rejected")));
+        assertEquals(0, pending.size());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void requestTimesOut() throws Exception {
+        PendingRequests pending = new PendingRequests();
+        CompletableFuture<PeerMessage> future = pending.register(1L, 10);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // a late result finds no request anymore
+        assertFalse(pending.complete(new PeerMessage(MessageType.RESULT, 1L)));
+        assertEquals(0, pending.size());
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.simedge.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.simedge.peer.ConnectionPool;
+import com.simedge.repository.ModelRepository;
+
+/**
+ * Model files and manifest of the model store
+ */
+public class ModelStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void manifestKeepsVerificationAndRecency() throws Exception {
+        byte[] first = model(1, 100);
+        byte[] second = model(2, 200);
+        ModelStore store = store();
+        store.write(hash(first), first);
+        store.write(hash(second), second);
+        store.saveManifest(List.of(hash(second), hash(first)));
+
+        ModelStore restarted = store();
+
+        assertTrue(restarted.isVerified(hash(first)));
+        assertTrue(restarted.isVerified(hash(second)));
+        assertEquals(200, restarted.size(hash(second)));
+        assertEquals(List.of(hash(first), hash(second)), restarted.recent());
+    }
+
+    @Test
+    public void filesMissingInManifestAreNotVerified() throws Exception {
+        byte[] model = model(1, 100);
+        Files.write(folder.getRoot().toPath().resolve(ConnectionPool.bytesToHex(hash(model).array())), model);
+
+        ModelStore store = store();
+
+        assertEquals(100, store.size(hash(model)));
+        assertFalse(store.isVerified(hash(model)));
+        // verified on first use
+        store.map(hash(model));
+        assertTrue(store.isVerified(hash(model)));
+    }
+
+    @Test
+    public void changedFilesAreVerifiedAgain() throws Exception {
+        byte[] model = model(1, 100);
+        ModelStore store = store();
+        store.write(hash(model), model);
+        store.saveManifest(List.of(hash(model)));
+        Path file = store.path(hash(model));
+        Files.write(file, model(1, 50));
+
+        ModelStore restarted = store();
+
+        assertFalse(restarted.isVerified(hash(model)));
+        try {
+            restarted.map(hash(model));
+        } catch (IOException e) {
+            // the broken file is removed
+            assertFalse(Files.exists(file));
+            return;
+        }
+        throw new AssertionError("Changed model was mapped");
+    }
+
+    @Test
+    public void deletedFilesAreDropped() throws Exception {
+        byte[] model = model(1, 100);
+        ModelStore store = store();
+        store.write(hash(model), model);
+        store.saveManifest(List.of(hash(model)));
+        Files.delete(store.path(hash(model)));
+
+        ModelStore restarted = store();
+
+        assertEquals(-1, restarted.size(hash(model)));
+        assertTrue(restarted.recent().isEmpty());
+    }
+
+    @Test
+    public void downloadResumesPartialFile() throws Exception {
+        byte[] model = model(1, 1000);
+        RecordingRepository repository = new RecordingRepository(model);
+        ModelStore store = store();
+        Path part = store.path(hash(model)).resolveSibling(store.path(hash(model)).getFileName() + ".part");
+        Files.write(part, Arrays.copyOf(model, 400));
+
+        assertTrue(store.download(hash(model), repository));
+
+        assertEquals(400, repository.offset);
+        assertFalse(Files.exists(part));
+        assertTrue(store.isVerified(hash(model)));
+        assertArrayEquals(model, Files.readAllBytes(store.path(hash(model))));
+    }
+
+    @Test
+    public void brokenPartialFileIsDiscarded() throws Exception {
+        byte[] model = model(1, 1000);
+        ModelStore store = store();
+        Path part = store.path(hash(model)).resolveSibling(store.path(hash(model)).getFileName() + ".part");
+        Files.write(part, model(7, 400));
+
+        try {
+            store.download(hash(model), new RecordingRepository(model));
+            throw new AssertionError("Broken model was stored");
+        } catch (IOException e) {
+            // the next download starts over
+            assertFalse(Files.exists(part));
+            assertFalse(store.contains(hash(model)));
+        }
+    }
+
+    @Test
+    public void missingModelIsNotStored() throws Exception {
+        byte[] model = model(1, 1000);
+        ModelStore store = store();
+
+        assertFalse(store.download(hash(model), new RecordingRepository(null)));
+        assertFalse(store.contains(hash(model)));
+    }
+
+    /**
+     * Opens the store in the temporary folder
+     *
+     * @return model store
+     */
+    private ModelStore store() {
+        return new ModelStore(folder.getRoot().getPath());
+    }
+
+    /**
+     * Test model of consecutive byte values
+     *
+     * @param start  first value
+     * @param length number of bytes
+     * @return model bytes
+     */
+    static byte[] model(int start, int length) {
+        byte[] model = new byte[length];
+        for (int i = 0; i < length; i++) {
+            model[i] = (byte) (start + i);
+        }
+        return model;
+    }
+
+    /**
+     * SHA-1 hash of a model as it is used by the store
+     *
+     * @param model model bytes
+     * @return hash
+     * @throws Exception
+     */
+    static ByteBuffer hash(byte[] model) throws Exception {
+        return ByteBuffer.wrap(MessageDigest.getInstance("SHA-1").digest(model));
+    }
+
+    /**
+     * Repository of a single model that records the offset of the download
+     */
+    private static class RecordingRepository implements ModelRepository {
+        private byte[] model;
+        private long offset = -1;
+
+        RecordingRepository(byte[] model) {
+            this.model = model;
+        }
+
+        @Override
+        public boolean download(String hash, long offset, OutputStream target) throws IOException {
+            this.offset = offset;
+            if (model == null) {
+                return false;
+            }
+            target.write(model, (int) offset, model.length - (int) offset);
+            return true;
+        }
+
+        @Override
+        public boolean upload(String hash, byte[] model) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
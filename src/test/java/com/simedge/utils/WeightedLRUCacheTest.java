@@ -0,0 +1,92 @@
+package com.simedge.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Eviction order and weight accounting of the weighted LRU cache
+ */
+public class WeightedLRUCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() {
+        WeightedLRUCache<String, byte[]> cache = new WeightedLRUCache<String, byte[]>(30, value -> value.length);
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[10]);
+        cache.put("c", new byte[10]);
+        cache.get("a");
+
+        List<Map.Entry<String, byte[]>> evicted = cache.put("d", new byte[10]);
+
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0).getKey());
+        assertEquals(List.of("c", "a", "d"), cache.keys());
+        assertEquals(30, cache.weight());
+    }
+
+    @Test
+    public void neverEvictsTheAddedEntry() {
+        WeightedLRUCache<String, byte[]> cache = new WeightedLRUCache<String, byte[]>(10, value -> value.length);
+        cache.put("a", new byte[5]);
+
+        List<Map.Entry<String, byte[]>> evicted = cache.put("big", new byte[20]);
+
+        assertEquals("a", evicted.get(0).getKey());
+        assertTrue(cache.containsKey("big"));
+        assertEquals(20, cache.weight());
+    }
+
+    @Test
+    public void reweighEvictsAfterGrowth() {
+        long[] weights = new long[] { 10, 10 };
+        WeightedLRUCache<Integer, Integer> cache = new WeightedLRUCache<Integer, Integer>(25, key -> weights[key]);
+        cache.put(0, 0);
+        cache.put(1, 1);
+
+        weights[1] = 20;
+        List<Map.Entry<Integer, Integer>> evicted = cache.reweigh(1);
+
+        assertEquals(1, evicted.size());
+        assertEquals(Integer.valueOf(0), evicted.get(0).getKey());
+        assertFalse(cache.containsKey(0));
+        assertEquals(20, cache.weight());
+    }
+
+    @Test
+    public void readsRecordTheCachedKey() {
+        WeightedLRUCache<ByteBuffer, byte[]> cache = new WeightedLRUCache<ByteBuffer, byte[]>(20,
+                value -> value.length);
+        cache.put(ByteBuffer.wrap(new byte[] { 1 }), new byte[10]);
+        cache.put(ByteBuffer.wrap(new byte[] { 2 }), new byte[10]);
+
+        // lookup key is a view of a packet that is reused afterwards
+        byte[] packet = new byte[] { 1 };
+        cache.get(ByteBuffer.wrap(packet));
+        packet[0] = 9;
+
+        List<Map.Entry<ByteBuffer, byte[]>> evicted = cache.put(ByteBuffer.wrap(new byte[] { 3 }), new byte[10]);
+
+        assertEquals(ByteBuffer.wrap(new byte[] { 2 }), evicted.get(0).getKey());
+        assertEquals(List.of(ByteBuffer.wrap(new byte[] { 1 }), ByteBuffer.wrap(new byte[] { 3 })), cache.keys());
+    }
+
+    @Test
+    public void removeReleasesWeight() {
+        WeightedLRUCache<String, byte[]> cache = new WeightedLRUCache<String, byte[]>(100, value -> value.length);
+        cache.put("a", new byte[40]);
+        cache.put("a", new byte[30]);
+
+        assertEquals(30, cache.weight());
+        cache.remove("a");
+        assertEquals(0, cache.weight());
+        assertEquals(0, cache.size());
+    }
+
+}